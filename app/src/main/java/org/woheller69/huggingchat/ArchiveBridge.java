@@ -0,0 +1,62 @@
+package org.woheller69.huggingchat;
+
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives finalized chat messages from the page.
+ * The injected script only looks at message elements touched by a MutationObserver, considers a message final
+ * once its text has been stable for two seconds and sends all new messages in one call per second at most.
+ */
+public class ArchiveBridge {
+
+    public static final String NAME = "hugAssistArchive";
+
+    public static final String SCRIPT = "(function(){"
+            + "if(window.__hugAssistArchive)return;window.__hugAssistArchive=true;"
+            + "var SEL='[data-message-id]',dirty=new Set(),seen={},queue=[];"
+            + "function conv(){var m=location.pathname.match(/\\/conversation\\/([^\\/?#]+)/);return m?m[1]:null;}"
+            + "function mark(n){var e=n.nodeType===1?n:n.parentElement;if(!e)return;var m=e.closest(SEL);if(m)dirty.add(m);}"
+            + "function scan(e){if(e.nodeType!==1)return;if(e.matches(SEL))dirty.add(e);e.querySelectorAll(SEL).forEach(function(m){dirty.add(m);});}"
+            + "new MutationObserver(function(ms){for(var i=0;i<ms.length;i++){mark(ms[i].target);ms[i].addedNodes.forEach(scan);}})"
+            + ".observe(document.body,{childList:true,subtree:true,characterData:true});"
+            + "scan(document.body);"
+            + "setInterval(function(){var c=conv(),now=Date.now();"
+            + "dirty.forEach(function(e){var id=e.getAttribute('data-message-id'),t=e.innerText,s=seen[id];"
+            + "if(!e.isConnected){dirty.delete(e);return;}"
+            + "if(!s||s.t!==t){seen[id]={t:t,at:now,sent:false};return;}"
+            + "if(s.sent){dirty.delete(e);return;}"
+            + "if(now-s.at>=2000){s.sent=true;dirty.delete(e);"
+            + "if(c&&t)queue.push({c:c,id:id,r:e.getAttribute('data-message-role')||'',t:t});}});"
+            + "if(queue.length){" + NAME + ".append(JSON.stringify(queue));queue=[];}"
+            + "},1000);"
+            + "})();";
+
+    private final ConversationArchive archive;
+
+    public ArchiveBridge(ConversationArchive archive) {
+        this.archive = archive;
+    }
+
+    @JavascriptInterface
+    public void append(String json) {
+        long now = System.currentTimeMillis();
+        List<ConversationArchive.Message> batch = new ArrayList<>();
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject message = array.getJSONObject(i);
+                batch.add(new ConversationArchive.Message(message.getString("c"), message.getString("id"), message.optString("r"), message.getString("t"), now));
+            }
+        } catch (JSONException e) {
+            return;
+        }
+        archive.add(batch);
+    }
+}
@@ -0,0 +1,83 @@
+package org.woheller69.huggingchat;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.format.DateUtils;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArchiveSearchDialog {
+
+    public interface OnConversationSelected {
+        void onSelected(String conversation);
+    }
+
+    private static final int PREVIEW_LENGTH = 160;
+
+    static void show(final Context context, final ConversationArchive archive, final OnConversationSelected listener) {
+        final EditText queryView = new EditText(context);
+        queryView.setHint(R.string.archive_search_hint);
+        queryView.setSingleLine(true);
+        final ListView listView = new ListView(context);
+        final ArrayAdapter<String> adapter = new ArrayAdapter<>(context, android.R.layout.simple_list_item_1, new ArrayList<String>());
+        final List<ConversationArchive.Message> results = new ArrayList<>();
+        listView.setAdapter(adapter);
+
+        LinearLayout layout = new LinearLayout(context);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        int padding = (int) (16 * context.getResources().getDisplayMetrics().density);
+        layout.setPadding(padding, padding, padding, 0);
+        layout.addView(queryView);
+        layout.addView(listView);
+
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(context);
+        alertDialogBuilder.setTitle(R.string.archive_search);
+        alertDialogBuilder.setView(layout);
+        alertDialogBuilder.setNegativeButton(context.getString(R.string.dialog_OK_button), null);
+        final AlertDialog alertDialog = alertDialogBuilder.create();
+
+        queryView.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                archive.search(s.toString(), new ConversationArchive.SearchCallback() {
+                    @Override
+                    public void onResult(String query, List<ConversationArchive.Message> messages) {
+                        if (!query.equals(queryView.getText().toString())) return;  //outdated
+                        results.clear();
+                        results.addAll(messages);
+                        adapter.clear();
+                        for (ConversationArchive.Message message : messages) {
+                            String text = message.text.length() > PREVIEW_LENGTH ? message.text.substring(0, PREVIEW_LENGTH) + "\u2026" : message.text;
+                            adapter.add(DateUtils.getRelativeTimeSpanString(message.time) + " \u00b7 " + message.role + "\n" + text.replace('\n', ' '));
+                        }
+                    }
+                });
+            }
+        });
+        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                listener.onSelected(results.get(position).conversation);
+                alertDialog.dismiss();
+            }
+        });
+        alertDialog.show();
+    }
+}
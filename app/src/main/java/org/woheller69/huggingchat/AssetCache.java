@@ -0,0 +1,256 @@
+package org.woheller69.huggingchat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * App-owned store for immutable, fingerprinted assets (the JS, CSS and font bundles below /_app/immutable/).
+ * Files are stored under the SHA-256 of their content, an index maps URLs to content hashes.
+ * When a bundle is replaced by one with a new fingerprint the superseded entry is dropped right away,
+ * everything else ages out through the LRU size cap of the underlying {@link DiskCache}.
+ */
+public class AssetCache {
+
+    public static final String IMMUTABLE_PATH = "/_app/immutable/";
+
+    private static final String INDEX = "index";
+    private static final int TIMEOUT = 15000;
+    //Vite style fingerprint before the file extension, e.g. start.Bq1x2a3c.js
+    private static final Pattern FINGERPRINT = Pattern.compile("\\.[A-Za-z0-9_-]{6,}(\\.[A-Za-z0-9]+)$");
+
+    public static final class Asset {
+        public final String mimeType;
+        public final InputStream data;
+
+        Asset(String mimeType, InputStream data) {
+            this.mimeType = mimeType;
+            this.data = data;
+        }
+    }
+
+    private static final class Entry {
+        final String hash;
+        final String mimeType;
+
+        Entry(String hash, String mimeType) {
+            this.hash = hash;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private final DiskCache store;
+    private final File indexFile;
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> bundles = new ConcurrentHashMap<>();  //name without fingerprint -> url
+    private final String pathMarker;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+
+    public AssetCache(File dir, long maxBytes, String pathMarker) {
+        this.pathMarker = pathMarker;
+        store = new DiskCache(new File(dir, "objects"), maxBytes);
+        indexFile = new File(dir, INDEX);
+        loadIndex();
+    }
+
+    public boolean isCacheable(String path) {
+        return path != null && path.contains(pathMarker);
+    }
+
+    private void loadIndex() {
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length == 3 && store.contains(fields[0])) {
+                        putIndex(fields[2], new Entry(fields[0], fields[1]));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        //Compact the index to the entries that are still present
+        synchronized (indexFile) {
+            try (Writer writer = new FileWriter(indexFile, false)) {
+                for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                    writeIndexLine(writer, entry.getKey(), entry.getValue());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void putIndex(String url, Entry entry) {
+        index.put(url, entry);
+        String name = bundleName(url);
+        if (name == null) return;
+        String previous = bundles.put(name, url);
+        if (previous != null && !previous.equals(url)) {
+            //Same bundle with a new fingerprint, the old version will not be requested again
+            Entry old = index.remove(previous);
+            if (old != null && !old.hash.equals(entry.hash)) {
+                if (!isReferenced(old.hash)) store.remove(old.hash);  //identical content may be indexed under other URLs
+                superseded.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean isReferenced(String hash) {
+        for (Entry entry : index.values()) {
+            if (entry.hash.equals(hash)) return true;
+        }
+        return false;
+    }
+
+    private static String bundleName(String url) {
+        Matcher matcher = FINGERPRINT.matcher(url);
+        return matcher.find() ? matcher.replaceFirst("$1") : null;
+    }
+
+    private void appendIndex(String url, Entry entry) {
+        synchronized (indexFile) {
+            try (Writer writer = new FileWriter(indexFile, true)) {
+                writeIndexLine(writer, url, entry);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void writeIndexLine(Writer writer, String url, Entry entry) throws IOException {
+        writer.write(entry.hash);
+        writer.write('\t');
+        writer.write(entry.mimeType);
+        writer.write('\t');
+        writer.write(url);
+        writer.write('\n');
+    }
+
+    //Returns the asset from disk, fetching it first if needed, or null to let the WebView load it itself
+    public Asset get(String url, Map<String, String> requestHeaders) {
+        Entry entry = index.get(url);
+        if (entry != null) {
+            File file = store.get(entry.hash);
+            if (file != null) {
+                try {
+                    InputStream data = DiskCache.openMapped(file);
+                    hits.incrementAndGet();
+                    return new Asset(entry.mimeType, data);
+                } catch (IOException e) {
+                    store.remove(entry.hash);
+                }
+            }
+            index.remove(url);
+        }
+        misses.incrementAndGet();
+        try {
+            entry = fetch(url, requestHeaders);
+            if (entry == null) return null;
+            File file = store.get(entry.hash);
+            if (file == null) return null;
+            putIndex(url, entry);
+            appendIndex(url, entry);
+            return new Asset(entry.mimeType, DiskCache.openMapped(file));
+        } catch (IOException e) {
+            e.printStackTrace();
+            BandwidthEstimator.getInstance().addFailure();
+            return null;
+        }
+    }
+
+    private Entry fetch(String url, Map<String, String> requestHeaders) throws IOException {
+        long start = System.currentTimeMillis();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        File tmp = null;
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            if (requestHeaders != null) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    if (!header.getKey().equalsIgnoreCase("Range")) connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) return null;
+            long headers = System.currentTimeMillis();
+            BandwidthEstimator.getInstance().addRtt(headers - start);
+            String mimeType = connection.getContentType();
+            if (mimeType == null) return null;
+            int separator = mimeType.indexOf(';');
+            if (separator >= 0) mimeType = mimeType.substring(0, separator).trim();
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            tmp = store.newTempFile();
+            long length = 0;
+            try (InputStream in = connection.getInputStream(); OutputStream out = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[16384];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    length += read;
+                }
+            }
+            BandwidthEstimator.getInstance().addTransfer(length, System.currentTimeMillis() - headers);
+            String hash = toHex(digest.digest());
+            store.commit(hash, tmp);
+            tmp = null;
+            return new Entry(hash, mimeType);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        } finally {
+            if (tmp != null) tmp.delete();
+            connection.disconnect();
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    public long size() {
+        return store.size();
+    }
+
+    public int count() {
+        return store.count();
+    }
+}
@@ -0,0 +1,198 @@
+package org.woheller69.huggingchat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Rough estimate of the current network conditions from the requests the app observes itself.
+ * Latency, throughput and time to first commit of page loads are smoothed with an EWMA, connectivity changes
+ * come from the ConnectivityManager. Entering and leaving the poor state use different thresholds and a
+ * minimum dwell time, so the WebView cache mode derived from it does not flap.
+ */
+public class BandwidthEstimator {
+
+    public static final int GOOD = 0;
+    public static final int POOR = 1;
+    public static final int OFFLINE = 2;
+    private static final String[] NAMES = {"good", "poor", "offline"};
+
+    public interface Listener {
+        void onQualityChanged(int previous, int quality);
+    }
+
+    private static final double ALPHA = 0.3;
+    private static final int MIN_SAMPLES = 3;
+    private static final long MIN_DWELL = 30 * 1000;
+    private static final long MIN_TRANSFER_BYTES = 16 * 1024;  //smaller bodies measure latency, not bandwidth
+    //Enter poor above the first value, leave it again below the second
+    private static final double[] RTT_MS = {1500, 600};
+    private static final double[] COMMIT_MS = {8000, 4000};
+    private static final double[] KBPS = {150, 500};
+    private static final int FAILURES = 2;
+    private static final int TRANSITIONS = 20;
+
+    private static BandwidthEstimator instance;
+
+    private Listener listener;
+    private double rtt = -1;
+    private double commit = -1;
+    private double kbps = -1;
+    private int samples = 0;
+    private int failures = 0;
+    private boolean connected = true;
+    private int quality = GOOD;
+    private long since = System.currentTimeMillis();
+
+    //Page loads per quality, to see what a mode change did to load times
+    private final long[] loads = new long[NAMES.length];
+    private final long[] loadMillis = new long[NAMES.length];
+    private final long[][] transitions = new long[TRANSITIONS][];
+    private int transitionCount = 0;
+
+    public static synchronized BandwidthEstimator getInstance() {
+        if (instance == null) instance = new BandwidthEstimator();
+        return instance;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized int getQuality() {
+        return quality;
+    }
+
+    //Time from sending a request to the response headers
+    public synchronized void addRtt(long millis) {
+        rtt = smooth(rtt, millis);
+        sampled();
+    }
+
+    public synchronized void addTransfer(long bytes, long millis) {
+        if (bytes < MIN_TRANSFER_BYTES || millis <= 0) return;
+        kbps = smooth(kbps, bytes * 8.0 / millis);
+        sampled();
+    }
+
+    //Time from onPageStarted to onPageCommitVisible
+    public synchronized void addCommit(long millis) {
+        commit = smooth(commit, millis);
+        sampled();
+    }
+
+    public synchronized void addFailure() {
+        failures++;
+        samples++;
+        evaluate();
+    }
+
+    public synchronized void addPageLoad(long millis) {
+        loads[quality]++;
+        loadMillis[quality] += millis;
+    }
+
+    //A new default network, old samples say nothing about it
+    public synchronized void onNetworkAvailable() {
+        connected = true;
+        rtt = commit = kbps = -1;
+        samples = 0;
+        failures = 0;
+        since = 0;
+        evaluate();
+    }
+
+    public synchronized void onNetworkLost() {
+        connected = false;
+        evaluate();
+    }
+
+    private static double smooth(double average, double sample) {
+        return average < 0 ? sample : average + ALPHA * (sample - average);
+    }
+
+    private void sampled() {
+        failures = 0;
+        samples++;
+        evaluate();
+    }
+
+    private boolean poor(int threshold) {
+        return failures >= FAILURES
+                || rtt > RTT_MS[threshold]
+                || commit > COMMIT_MS[threshold]
+                || (kbps >= 0 && kbps < KBPS[threshold]);
+    }
+
+    private void evaluate() {
+        int target;
+        if (!connected) target = OFFLINE;
+        else if (samples < MIN_SAMPLES) target = samples == 0 ? GOOD : quality;
+        else if (quality == POOR) target = poor(1) ? POOR : GOOD;
+        else target = poor(0) ? POOR : GOOD;
+        if (target == quality) return;
+
+        long now = System.currentTimeMillis();
+        //Connectivity changes apply right away, estimates have to hold for a while
+        if (target != OFFLINE && quality != OFFLINE && now - since < MIN_DWELL) return;
+        int previous = quality;
+        transitions[transitionCount % TRANSITIONS] = new long[]{now, previous, target, averageLoad(previous)};
+        transitionCount++;
+        quality = target;
+        since = now;
+        if (listener != null) listener.onQualityChanged(previous, target);
+    }
+
+    private long averageLoad(int quality) {
+        return loads[quality] == 0 ? -1 : loadMillis[quality] / loads[quality];
+    }
+
+    public static String name(int quality) {
+        return NAMES[quality];
+    }
+
+    public synchronized String toText() {
+        StringBuilder text = new StringBuilder("Network quality: ").append(NAMES[quality]).append('\n');
+        text.append("rtt ").append(Math.round(rtt)).append(" ms, commit ").append(Math.round(commit))
+                .append(" ms, ").append(Math.round(kbps)).append(" kbit/s, failures ").append(failures).append('\n');
+        for (int i = 0; i < NAMES.length; i++) {
+            text.append(NAMES[i]).append(": ").append(loads[i]).append(" loads, avg ").append(averageLoad(i)).append(" ms\n");
+        }
+        int first = Math.max(0, transitionCount - TRANSITIONS);
+        for (int i = transitionCount - 1; i >= first; i--) {
+            long[] transition = transitions[i % TRANSITIONS];
+            text.append(NAMES[(int) transition[1]]).append(" -> ").append(NAMES[(int) transition[2]])
+                    .append(", avg load before ").append(transition[3]).append(" ms\n");
+        }
+        return text.toString();
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("quality", NAMES[quality]);
+        json.put("rttMs", rtt);
+        json.put("commitMs", commit);
+        json.put("kbps", kbps);
+        json.put("failures", failures);
+        JSONObject loadsJson = new JSONObject();
+        for (int i = 0; i < NAMES.length; i++) {
+            JSONObject load = new JSONObject();
+            load.put("count", loads[i]);
+            load.put("avgMs", averageLoad(i));
+            loadsJson.put(NAMES[i], load);
+        }
+        json.put("pageLoads", loadsJson);
+        JSONArray transitionsJson = new JSONArray();
+        for (int i = Math.max(0, transitionCount - TRANSITIONS); i < transitionCount; i++) {
+            long[] transition = transitions[i % TRANSITIONS];
+            JSONObject transitionJson = new JSONObject();
+            transitionJson.put("time", transition[0]);
+            transitionJson.put("from", NAMES[(int) transition[1]]);
+            transitionJson.put("to", NAMES[(int) transition[2]]);
+            transitionJson.put("avgLoadBeforeMs", transition[3]);
+            transitionsJson.put(transitionJson);
+        }
+        json.put("transitions", transitionsJson);
+        return json;
+    }
+}
@@ -0,0 +1,346 @@
+package org.woheller69.huggingchat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Blocklist for requests that pass the allowlist, using a subset of the EasyList syntax:
+ * "||host^" blocks a host and its subdomains, other rules are URL substrings where "*" matches anything.
+ * Exceptions, options and element hiding rules are ignored.
+ * <p>
+ * Rules are compiled once into a binary file that is memory-mapped instead of parsed at startup:
+ * <pre>
+ * header     magic, version, host slots, path slots, bloom words, rule count, untokenized rule count
+ * hosts      open addressing table of 64-bit host hashes
+ * bloom      bloom filter over the key tokens of the path rules
+ * paths      open addressing table of (token hash, first rule, rule count)
+ * rules      offsets of the rule strings, sorted by key token, rules without a key token first
+ * strings    length-prefixed ASCII rule strings
+ * </pre>
+ * Matching hashes each label suffix of the host and each alphanumeric token of the URL without allocating.
+ */
+public class BlocklistEngine {
+
+    private static final int MAGIC = 0x48414231;  //HAB1
+    private static final int VERSION = 1;
+    private static final int HEADER = 7 * 4;
+    private static final int PATH_SLOT = 16;
+    private static final int MIN_TOKEN = 3;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ByteBuffer buffer;
+    private final int hostSlots;
+    private final int pathSlots;
+    private final int bloomWords;
+    private final int untokenized;
+    private final int hostsStart;
+    private final int bloomStart;
+    private final int pathsStart;
+    private final int rulesStart;
+
+    private BlocklistEngine(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) throw new IOException("Not a compiled blocklist");
+        hostSlots = buffer.getInt(8);
+        pathSlots = buffer.getInt(12);
+        bloomWords = buffer.getInt(16);
+        untokenized = buffer.getInt(24);
+        hostsStart = HEADER;
+        bloomStart = hostsStart + hostSlots * 8;
+        pathsStart = bloomStart + bloomWords * 8;
+        rulesStart = pathsStart + pathSlots * PATH_SLOT;
+    }
+
+    public static BlocklistEngine open(File compiled) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(compiled, "r")) {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BlocklistEngine(buffer);
+        }
+    }
+
+    //True if the list had no supported rules, nothing can be blocked then
+    public boolean isEmpty() {
+        return hostSlots == 0 && buffer.getInt(20) == 0;
+    }
+
+    public boolean isBlocked(String host, String url) {
+        if (host != null && matchHost(host)) return true;
+        return url != null && matchUrl(url);
+    }
+
+    private boolean matchHost(String host) {
+        int start = 0;
+        while (start < host.length()) {
+            long hash = hash(host, start, host.length());
+            if (hash != 0 && hostSlots > 0) {
+                int mask = hostSlots - 1;
+                for (int slot = (int) (hash & mask); ; slot = (slot + 1) & mask) {
+                    long stored = buffer.getLong(hostsStart + slot * 8);
+                    if (stored == 0) break;
+                    if (stored == hash) return true;
+                }
+            }
+            int dot = host.indexOf('.', start);
+            if (dot < 0) break;
+            start = dot + 1;
+        }
+        return false;
+    }
+
+    private boolean matchUrl(String url) {
+        for (int i = 0; i < untokenized; i++) {
+            if (matchRule(i, url)) return true;
+        }
+        if (pathSlots == 0) return false;
+        int length = url.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean alnum = i < length && isAlnum(url.charAt(i));
+            if (alnum && start < 0) {
+                start = i;
+            } else if (!alnum && start >= 0) {
+                if (i - start >= MIN_TOKEN) {
+                    long hash = hash(url, start, i);
+                    if (mightContain(hash) && matchToken(hash, url)) return true;
+                }
+                start = -1;
+            }
+        }
+        return false;
+    }
+
+    private boolean mightContain(long hash) {
+        int bits = bloomWords * 64;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int k = 0; k < 3; k++) {
+            int bit = ((h1 + k * h2) & 0x7fffffff) % bits;
+            if ((buffer.getLong(bloomStart + (bit >>> 6) * 8) & (1L << (bit & 63))) == 0) return false;
+        }
+        return true;
+    }
+
+    private boolean matchToken(long hash, String url) {
+        int mask = pathSlots - 1;
+        for (int slot = (int) (hash & mask); ; slot = (slot + 1) & mask) {
+            int position = pathsStart + slot * PATH_SLOT;
+            long stored = buffer.getLong(position);
+            if (stored == 0) return false;
+            if (stored == hash) {
+                int first = buffer.getInt(position + 8);
+                int count = buffer.getInt(position + 12);
+                for (int rule = first; rule < first + count; rule++) {
+                    if (matchRule(rule, url)) return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    //Matches the '*' separated segments of the rule in order, case-insensitive
+    private boolean matchRule(int rule, String url) {
+        int offset = buffer.getInt(rulesStart + rule * 4);
+        int length = buffer.getShort(offset) & 0xffff;
+        int ruleStart = offset + 2;
+        int ruleEnd = ruleStart + length;
+        int from = 0;
+        int segmentStart = ruleStart;
+        while (segmentStart <= ruleEnd) {
+            int segmentEnd = segmentStart;
+            while (segmentEnd < ruleEnd && buffer.get(segmentEnd) != '*') segmentEnd++;
+            int segmentLength = segmentEnd - segmentStart;
+            if (segmentLength > 0) {
+                int found = indexOf(url, from, segmentStart, segmentLength);
+                if (found < 0) return false;
+                from = found + segmentLength;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return true;
+    }
+
+    private int indexOf(String url, int from, int segmentStart, int segmentLength) {
+        outer:
+        for (int i = from; i <= url.length() - segmentLength; i++) {
+            for (int j = 0; j < segmentLength; j++) {
+                if (Character.toLowerCase(url.charAt(i + j)) != buffer.get(segmentStart + j)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean isAlnum(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static long hash(CharSequence text, int start, int end) {
+        long hash = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            hash ^= Character.toLowerCase(text.charAt(i));
+            hash *= FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;  //0 marks empty slots
+    }
+
+    private static final class PathRule {
+        final byte[] pattern;
+        final long token;  //0 if the rule has no key token
+
+        PathRule(byte[] pattern, long token) {
+            this.pattern = pattern;
+            this.token = token;
+        }
+    }
+
+    //Compiles an EasyList style list into the binary format read by open()
+    public static int compile(InputStream source, File compiled) throws IOException {
+        Charset ascii = Charset.forName("US-ASCII");
+        List<Long> hosts = new ArrayList<>();
+        List<PathRule> paths = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(source, "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim().toLowerCase();
+                if (line.isEmpty() || line.startsWith("!") || line.startsWith("[") || line.startsWith("@@") || line.contains("#")) continue;
+                int options = line.indexOf('$');
+                if (options >= 0) line = line.substring(0, options);
+                if (line.startsWith("||")) {
+                    String host = line.substring(2);
+                    if (host.endsWith("^")) host = host.substring(0, host.length() - 1);
+                    if (!host.isEmpty() && host.matches("[a-z0-9.-]+")) {
+                        hosts.add(hash(host, 0, host.length()));
+                        continue;
+                    }
+                    line = host;
+                }
+                if (line.startsWith("|")) line = line.substring(1);
+                if (line.endsWith("|") || line.endsWith("^")) line = line.substring(0, line.length() - 1);
+                if (line.replace("*", "").length() < MIN_TOKEN || line.contains("^") || line.contains("|") || line.length() > 0xffff) continue;
+                if (!ascii.newEncoder().canEncode(line)) continue;
+                paths.add(new PathRule(line.getBytes(ascii), keyToken(line)));
+            }
+        }
+
+        Collections.sort(paths, new Comparator<PathRule>() {
+            @Override
+            public int compare(PathRule a, PathRule b) {
+                if ((a.token == 0) != (b.token == 0)) return a.token == 0 ? -1 : 1;
+                return Long.compare(a.token, b.token);
+            }
+        });
+        int untokenized = 0;
+        int tokens = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            if (paths.get(i).token == 0) untokenized++;
+            else if (i == 0 || paths.get(i - 1).token != paths.get(i).token) tokens++;
+        }
+
+        int hostSlots = hosts.isEmpty() ? 0 : tableSize(hosts.size());
+        int pathSlots = tokens == 0 ? 0 : tableSize(tokens);
+        int bloomWords = Math.max(1, tableSize(tokens * 10) / 64);
+        int rulesStart = HEADER + hostSlots * 8 + bloomWords * 8 + pathSlots * PATH_SLOT;
+        int stringsStart = rulesStart + paths.size() * 4;
+        int size = stringsStart;
+        for (PathRule rule : paths) size += 2 + rule.pattern.length;
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(0, MAGIC);
+        out.putInt(4, VERSION);
+        out.putInt(8, hostSlots);
+        out.putInt(12, pathSlots);
+        out.putInt(16, bloomWords);
+        out.putInt(20, paths.size());
+        out.putInt(24, untokenized);
+
+        for (long hash : hosts) {
+            int mask = hostSlots - 1;
+            int slot = (int) (hash & mask);
+            while (out.getLong(HEADER + slot * 8) != 0 && out.getLong(HEADER + slot * 8) != hash) slot = (slot + 1) & mask;
+            out.putLong(HEADER + slot * 8, hash);
+        }
+
+        int bloomStart = HEADER + hostSlots * 8;
+        int pathsStart = bloomStart + bloomWords * 8;
+        int stringOffset = stringsStart;
+        for (int i = 0; i < paths.size(); i++) {
+            PathRule rule = paths.get(i);
+            out.putInt(rulesStart + i * 4, stringOffset);
+            out.putShort(stringOffset, (short) rule.pattern.length);
+            for (int j = 0; j < rule.pattern.length; j++) out.put(stringOffset + 2 + j, rule.pattern[j]);
+            stringOffset += 2 + rule.pattern.length;
+            if (rule.token == 0 || (i > 0 && paths.get(i - 1).token == rule.token)) continue;
+
+            int count = 1;
+            while (i + count < paths.size() && paths.get(i + count).token == rule.token) count++;
+            int mask = pathSlots - 1;
+            int slot = (int) (rule.token & mask);
+            while (out.getLong(pathsStart + slot * PATH_SLOT) != 0) slot = (slot + 1) & mask;
+            out.putLong(pathsStart + slot * PATH_SLOT, rule.token);
+            out.putInt(pathsStart + slot * PATH_SLOT + 8, i);
+            out.putInt(pathsStart + slot * PATH_SLOT + 12, count);
+
+            int bits = bloomWords * 64;
+            int h1 = (int) rule.token;
+            int h2 = (int) (rule.token >>> 32);
+            for (int k = 0; k < 3; k++) {
+                int bit = ((h1 + k * h2) & 0x7fffffff) % bits;
+                int position = bloomStart + (bit >>> 6) * 8;
+                out.putLong(position, out.getLong(position) | (1L << (bit & 63)));
+            }
+        }
+
+        File tmp = new File(compiled.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            file.write(out.array());
+        }
+        if (!tmp.renameTo(compiled)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + compiled);
+        }
+        return hosts.size() + paths.size();
+    }
+
+    //Longest alphanumeric run that is delimited by non-alphanumeric characters within one segment of the rule,
+    //so it is guaranteed to show up as a complete token in every matching URL
+    private static long keyToken(String rule) {
+        int bestStart = -1;
+        int bestLength = 0;
+        int start = -1;
+        for (int i = 0; i <= rule.length(); i++) {
+            boolean alnum = i < rule.length() && isAlnum(rule.charAt(i));
+            if (alnum && start < 0) {
+                start = i;
+            } else if (!alnum && start >= 0) {
+                boolean delimited = start > 0 && i < rule.length() && rule.charAt(start - 1) != '*' && rule.charAt(i) != '*';
+                if (delimited && i - start >= MIN_TOKEN && i - start > bestLength) {
+                    bestStart = start;
+                    bestLength = i - start;
+                }
+                start = -1;
+            }
+        }
+        return bestStart < 0 ? 0 : hash(rule, bestStart, bestStart + bestLength);
+    }
+
+    private static int tableSize(int entries) {
+        int size = 16;
+        while (size < entries * 2) size *= 2;
+        return size;
+    }
+}
@@ -0,0 +1,363 @@
+package org.woheller69.huggingchat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local archive of captured chat messages.
+ * Messages are appended to a log file of JSON lines, a message that is captured again (e.g. after an edit) supersedes
+ * its older version. The log is compacted when more than half of it is superseded. Only the index is kept in memory:
+ * postings from terms to message ordinals, a sorted term array for prefix queries and the position of each message
+ * in the log, from which the messages found by a search are read. The index is rebuilt from the log at startup.
+ * The last term of a query that does not end with a separator matches as a prefix, so results appear while typing.
+ * All work happens on one background thread, results are delivered on the main thread.
+ */
+public class ConversationArchive {
+
+    public static final class Message {
+        public final String conversation;
+        public final String id;
+        public final String role;
+        public final String text;
+        public final long time;
+
+        Message(String conversation, String id, String role, String text, long time) {
+            this.conversation = conversation;
+            this.id = id;
+            this.role = role;
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    public interface SearchCallback {
+        void onResult(String query, List<Message> messages);
+    }
+
+    private static final String LOG = "log";
+    private static final int MAX_RESULTS = 100;
+    private static final int MIN_COMPACT = 500;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File dir;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //Only accessed from the executor thread
+    private int count = 0;  //ordinals in use
+    private long[] offsets = new long[64];  //ordinal -> start of its line in the log
+    private int[] lengths = new int[64];  //ordinal -> length of its line without the newline
+    private long[] textHashes = new long[64];  //ordinal -> hash of the text, to skip unchanged messages
+    private long logLength = 0;
+    private final HashMap<String, Integer> latest = new HashMap<>();  //conversation/id -> ordinal
+    private final HashMap<String, int[]> postings = new HashMap<>();  //term -> ordinals, first element is the count
+    private String[] sortedTerms = null;  //built on the first prefix query after the terms changed
+    private final BitSet superseded = new BitSet();
+    private int supersededCount = 0;
+
+    public ConversationArchive(File dir) {
+        this.dir = dir;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    public void add(final List<Message> batch) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Message> added = new ArrayList<>();
+                for (Message message : batch) {
+                    Integer previous = latest.get(key(message));
+                    if (previous != null && textHashes[previous] == hash(message.text)) continue;
+                    added.add(message);
+                }
+                append(added);
+                if (supersededCount > MIN_COMPACT && supersededCount > count / 2) compact();
+            }
+        });
+    }
+
+    public void search(final String query, final SearchCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Message> result = find(query);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(query, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private static String key(Message message) {
+        return message.conversation + "/" + message.id;
+    }
+
+    private static long hash(String text) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private void index(Message message, long offset, int length) {
+        int ordinal = count++;
+        if (ordinal == offsets.length) {
+            offsets = Arrays.copyOf(offsets, ordinal * 2);
+            lengths = Arrays.copyOf(lengths, ordinal * 2);
+            textHashes = Arrays.copyOf(textHashes, ordinal * 2);
+        }
+        offsets[ordinal] = offset;
+        lengths[ordinal] = length;
+        textHashes[ordinal] = hash(message.text);
+        Integer previous = latest.put(key(message), ordinal);
+        if (previous != null) {
+            superseded.set(previous);
+            supersededCount++;
+        }
+        for (String term : tokenize(message.text)) {
+            int[] list = postings.get(term);
+            if (list == null) {
+                list = new int[4];
+                sortedTerms = null;
+            } else if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[++list[0]] = ordinal;
+            postings.put(term, list);
+        }
+    }
+
+    private List<Message> find(String query) {
+        List<Message> result = new ArrayList<>();
+        List<String> terms = new ArrayList<>(tokenize(query));
+        if (terms.isEmpty()) return result;
+        String prefix = null;
+        if (Character.isLetterOrDigit(query.charAt(query.length() - 1))) {
+            prefix = terms.remove(terms.size() - 1);  //still being typed
+            if (terms.contains(prefix)) prefix = null;  //also a complete term
+        }
+        BitSet prefixMatches = prefix != null ? matchPrefix(prefix) : null;
+        if (prefixMatches != null && prefixMatches.isEmpty()) return result;
+        //Intersect starting with the rarest term, postings are sorted by ordinal
+        int[] candidates = null;
+        int candidateCount = 0;
+        for (String term : terms) {
+            int[] list = postings.get(term);
+            if (list == null) return result;
+            if (candidates == null || list[0] < candidateCount) {
+                candidates = list;
+                candidateCount = list[0];
+            }
+        }
+        List<Integer> found = new ArrayList<>();
+        int i = candidates != null ? candidateCount : -1;
+        int ordinal = candidates != null ? -1 : prefixMatches.length();
+        while (found.size() < MAX_RESULTS) {
+            if (candidates != null) {
+                if (i < 1) break;
+                ordinal = candidates[i--];
+            } else {
+                ordinal = prefixMatches.previousSetBit(ordinal - 1);
+                if (ordinal < 0) break;
+            }
+            if (superseded.get(ordinal)) continue;
+            if (prefixMatches != null && !prefixMatches.get(ordinal)) continue;
+            boolean all = true;
+            for (String term : terms) {
+                int[] list = postings.get(term);
+                if (list != candidates && Arrays.binarySearch(list, 1, list[0] + 1, ordinal) < 0) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) found.add(ordinal);
+        }
+        readMessages(found, result);
+        return result;
+    }
+
+    //Ordinals of all messages containing a term that starts with the prefix
+    private BitSet matchPrefix(String prefix) {
+        if (sortedTerms == null) {
+            sortedTerms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(sortedTerms);
+        }
+        BitSet matches = new BitSet();
+        int first = Arrays.binarySearch(sortedTerms, prefix);
+        if (first < 0) first = -first - 1;
+        for (int t = first; t < sortedTerms.length && sortedTerms[t].startsWith(prefix); t++) {
+            int[] list = postings.get(sortedTerms[t]);
+            for (int j = 1; j <= list[0]; j++) matches.set(list[j]);
+        }
+        return matches;
+    }
+
+    private void readMessages(List<Integer> ordinals, List<Message> result) {
+        if (ordinals.isEmpty()) return;
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, LOG), "r")) {
+            for (int ordinal : ordinals) {
+                byte[] line = new byte[lengths[ordinal]];
+                file.seek(offsets[ordinal]);
+                file.readFully(line);
+                Message message = parse(line);
+                if (message != null) result.add(message);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //Terms in the order of their first occurrence
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start >= 2) terms.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private static Message parse(byte[] line) {
+        try {
+            JSONObject json = new JSONObject(new String(line, StandardCharsets.UTF_8));
+            return new Message(json.getString("c"), json.getString("id"), json.optString("r"), json.getString("t"), json.optLong("ts"));
+        } catch (JSONException e) {  //e.g. a line cut off by a crash
+            return null;
+        }
+    }
+
+    //Indexes the log line by line, keeping track of the byte offset of each line
+    private void load() {
+        File file = new File(dir, LOG);
+        if (!file.exists()) return;
+        long offset = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != '\n') continue;
+                    line.write(buffer, start, i - start);
+                    Message message = parse(line.toByteArray());
+                    if (message != null) index(message, offset, line.size());
+                    offset += line.size() + 1;
+                    line.reset();
+                    start = i + 1;
+                }
+                line.write(buffer, start, read - start);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        logLength = offset;
+        if (file.length() > offset) {
+            //Drop a last line without newline, it was cut off and the next append would continue it
+            try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+                log.setLength(offset);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void append(List<Message> added) {
+        if (added.isEmpty()) return;
+        if (!dir.isDirectory() && !dir.mkdirs()) return;
+        List<byte[]> lines = new ArrayList<>();
+        try (OutputStream out = new FileOutputStream(new File(dir, LOG), true)) {
+            for (Message message : added) {
+                byte[] line = toLine(message);
+                out.write(line);
+                out.write('\n');
+                lines.add(line);
+            }
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            return;  //not indexed, the positions of the lines are unknown
+        }
+        for (int i = 0; i < added.size(); i++) {
+            index(added.get(i), logLength, lines.get(i).length);
+            logLength += lines.get(i).length + 1;
+        }
+    }
+
+    private static byte[] toLine(Message message) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("c", message.conversation);
+        json.put("id", message.id);
+        json.put("r", message.role);
+        json.put("t", message.text);
+        json.put("ts", message.time);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    //Copies the lines of messages that are not superseded to a new log and rebuilds the index from it
+    private void compact() {
+        File file = new File(dir, LOG);
+        File tmp = new File(dir, LOG + ".tmp");
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); OutputStream out = new FileOutputStream(tmp, false)) {
+            for (int i = 0; i < count; i++) {
+                if (superseded.get(i)) continue;
+                byte[] line = new byte[lengths[i]];
+                in.seek(offsets[i]);
+                in.readFully(line);
+                out.write(line);
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) return;
+        count = 0;
+        logLength = 0;
+        latest.clear();
+        postings.clear();
+        sortedTerms = null;
+        superseded.clear();
+        supersededCount = 0;
+        load();
+    }
+}
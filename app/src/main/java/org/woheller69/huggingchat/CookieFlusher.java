@@ -0,0 +1,72 @@
+package org.woheller69.huggingchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.webkit.CookieManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Flushes cookies to disk on a background thread.
+ * Requests within DEBOUNCE ms are coalesced into one flush, flushNow() skips the delay (e.g. in onPause).
+ */
+public class CookieFlusher {
+
+    private static final long DEBOUNCE = 2000;
+
+    private static CookieFlusher instance;
+
+    private final Handler handler;
+    private volatile long lastDuration = 0;
+    private volatile long count = 0;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            CookieManager.getInstance().flush();
+            lastDuration = SystemClock.elapsedRealtime() - start;
+            count++;
+        }
+    };
+
+    private CookieFlusher() {
+        HandlerThread thread = new HandlerThread("CookieFlusher");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized CookieFlusher getInstance() {
+        if (instance == null) instance = new CookieFlusher();
+        return instance;
+    }
+
+    public void flush() {
+        handler.removeCallbacks(flush);
+        handler.postDelayed(flush, DEBOUNCE);
+    }
+
+    public void flushNow() {
+        handler.removeCallbacks(flush);
+        handler.post(flush);
+    }
+
+    //Runs after all pending flushes, on the flush thread
+    public void flushNow(Runnable then) {
+        flushNow();
+        handler.post(then);
+    }
+
+    public String toText() {
+        return "Cookie flushes " + count + ", last " + lastDuration + " ms\n";
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("flushes", count);
+        json.put("lastMillis", lastDuration);
+        return json;
+    }
+}
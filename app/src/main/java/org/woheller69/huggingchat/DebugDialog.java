@@ -0,0 +1,113 @@
+package org.woheller69.huggingchat;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.net.http.HttpResponseCache;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class DebugDialog {
+
+    static void show(Context context, WebViewPool webViewPool) {
+        NetworkMetrics metrics = NetworkMetrics.getInstance();
+
+        TextView textView = new TextView(context);
+        int padding = (int) (16 * context.getResources().getDisplayMetrics().density);
+        textView.setPadding(padding, padding, padding, padding);
+        textView.setTypeface(Typeface.MONOSPACE);
+        textView.setTextIsSelectable(true);
+        StringBuilder text = new StringBuilder(metrics.toText());
+        text.append('\n').append(BandwidthEstimator.getInstance().toText());
+        AssetCache assetCache = MainActivity.assetCache;
+        if (assetCache != null) {
+            text.append("\nAsset cache\n")
+                    .append(assetCache.count()).append(" files, ").append(assetCache.size() / 1024).append(" kB\n")
+                    .append("hits ").append(assetCache.getHits())
+                    .append(", misses ").append(assetCache.getMisses())
+                    .append(", superseded ").append(assetCache.getSuperseded()).append('\n');
+        }
+        if (MainActivity.imageCache != null) text.append('\n').append(MainActivity.imageCache.toText());
+        if (MainActivity.downloadEngine != null) text.append('\n').append(MainActivity.downloadEngine.toText());
+        HttpStack httpStack = MainActivity.httpStack;
+        if (httpStack != null) {
+            text.append('\n').append(httpStack.toText());
+            HttpResponseCache cache = HttpResponseCache.getInstalled();
+            if (cache != null) {
+                text.append("response cache ").append(cache.size() / 1024).append(" kB, hits ").append(cache.getHitCount())
+                        .append(", network ").append(cache.getNetworkCount()).append('\n');
+            }
+        }
+        text.append('\n').append(StreamingMetrics.getInstance().toText());
+        text.append('\n').append(PageTelemetry.getInstance().toText());
+        if (webViewPool != null) text.append('\n').append(webViewPool.toText());
+        text.append('\n').append(FrameMonitor.getInstance().toText());
+        text.append('\n').append(ResetPipeline.toText()).append(CookieFlusher.getInstance().toText());
+        text.append('\n').append(MemoryMonitor.getInstance().toText());
+        text.append('\n').append(Settings.getInstance().toText());
+        text.append('\n').append(StartupTrace.toText(context.getFilesDir()));
+        textView.setText(text);
+        ScrollView scrollView = new ScrollView(context);
+        scrollView.addView(textView);
+
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(context);
+        alertDialogBuilder.setTitle(R.string.debug_title);
+        alertDialogBuilder.setView(scrollView);
+        alertDialogBuilder.setPositiveButton(context.getString(R.string.debug_export), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                export(context, webViewPool);
+            }
+        });
+        alertDialogBuilder.setNegativeButton(context.getString(R.string.dialog_OK_button), null);
+        alertDialogBuilder.create().show();
+    }
+
+    static JSONObject toJson(Context context, WebViewPool webViewPool) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("versionCode", BuildConfig.VERSION_CODE);
+        json.put("timestamp", System.currentTimeMillis());
+        json.put("network", NetworkMetrics.getInstance().toJson());
+        json.put("bandwidth", BandwidthEstimator.getInstance().toJson());
+        AssetCache assetCache = MainActivity.assetCache;
+        if (assetCache != null) {
+            JSONObject cache = new JSONObject();
+            cache.put("files", assetCache.count());
+            cache.put("bytes", assetCache.size());
+            cache.put("hits", assetCache.getHits());
+            cache.put("misses", assetCache.getMisses());
+            cache.put("superseded", assetCache.getSuperseded());
+            json.put("assetCache", cache);
+        }
+        if (MainActivity.imageCache != null) json.put("imageCache", MainActivity.imageCache.toJson());
+        if (MainActivity.downloadEngine != null) json.put("downloads", MainActivity.downloadEngine.toJson());
+        HttpStack httpStack = MainActivity.httpStack;
+        if (httpStack != null) json.put("httpStack", httpStack.toJson());
+        json.put("streaming", StreamingMetrics.getInstance().toJson());
+        json.put("telemetry", PageTelemetry.getInstance().toJson());
+        if (webViewPool != null) json.put("webViewPool", webViewPool.toJson());
+        json.put("frames", FrameMonitor.getInstance().toJson());
+        json.put("reset", ResetPipeline.toJson());
+        json.put("cookies", CookieFlusher.getInstance().toJson());
+        json.put("memory", MemoryMonitor.getInstance().toJson());
+        json.put("settings", Settings.getInstance().toJson());
+        json.put("startup", StartupTrace.load(context.getFilesDir()));
+        return json;
+    }
+
+    private static void export(Context context, WebViewPool webViewPool) {
+        try {
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("text/plain");
+            intent.putExtra(Intent.EXTRA_TEXT, toJson(context, webViewPool).toString(2));
+            context.startActivity(Intent.createChooser(intent, context.getString(R.string.debug_export)));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+}
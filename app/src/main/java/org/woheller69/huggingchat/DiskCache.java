@@ -0,0 +1,129 @@
+package org.woheller69.huggingchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded directory of files with LRU eviction.
+ * The access order survives restarts through the file modification time.
+ */
+public class DiskCache {
+
+    private static final String TMP_PREFIX = "tmp-";
+    private static final long TOUCH_INTERVAL = 60 * 60 * 1000;
+
+    private final File dir;
+    private long maxBytes;
+    private long size = 0;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    public DiskCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) return;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        List<File> list = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : list) {
+            if (file.getName().startsWith(TMP_PREFIX)) {
+                file.delete();  //left over from an interrupted write
+            } else {
+                entries.put(file.getName(), file.length());
+                size += file.length();
+            }
+        }
+        trimTo(maxBytes);
+    }
+
+    public synchronized File get(String key) {
+        if (entries.get(key) == null) return null;
+        File file = new File(dir, key);
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > TOUCH_INTERVAL) file.setLastModified(now);
+        return file;
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    public File newTempFile() throws IOException {
+        return File.createTempFile(TMP_PREFIX, null, dir);
+    }
+
+    //Moves a finished temp file into the cache under the given key
+    public synchronized File commit(String key, File tmp) throws IOException {
+        File file = new File(dir, key);
+        Long old = entries.remove(key);
+        if (old != null) size -= old;
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+        entries.put(key, file.length());
+        size += file.length();
+        trimTo(maxBytes);
+        return file;
+    }
+
+    public synchronized void remove(String key) {
+        Long old = entries.remove(key);
+        if (old != null) {
+            size -= old;
+            new File(dir, key).delete();
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    public synchronized void trimTo(long bytes) {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > bytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(dir, eldest.getKey()).delete();
+            size -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    //Maps the file read-only, the mapping is released when the stream is garbage collected
+    public static InputStream openMapped(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ByteBufferInputStream(buffer);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.woheller69.huggingchat;
+
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads long-pressed images on one bounded worker pool.
+ * Bodies are streamed straight into the target while being hashed. A URL that is already queued or running
+ * is skipped, as is content that an earlier download saved to a file that still exists. Transfers interrupted
+ * within one download are resumed with range requests, a download that fails for good deletes its target.
+ * data: URLs, including the ones the page hands over for blob: URLs, are decoded on the worker pool.
+ */
+public class DownloadEngine {
+
+    public static final int QUEUED = 0;
+    public static final int RUNNING = 1;
+    public static final int DONE = 2;
+    public static final int FAILED = 3;
+    public static final int DUPLICATE = 4;
+
+    private static final int THREADS = 2;
+    private static final int MAX_QUEUE = 16;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int TIMEOUT = 20000;
+    private static final long PROGRESS_INTERVAL = 250;
+
+    //Where the bytes go, e.g. a file in the public download folder or a pending MediaStore entry
+    public interface Target {
+        long length() throws IOException;
+        InputStream openRead() throws IOException;
+        OutputStream openWrite(boolean append) throws IOException;
+        void complete() throws IOException;
+        void delete();
+        boolean exists();  //not yet completed, or completed and not deleted since
+    }
+
+    public interface TargetFactory {
+        //The key identifies the download, targets must not pick up data left behind by another one
+        Target create(String key, String fileName, String mimeType) throws IOException;
+    }
+
+    public interface Listener {
+        void onProgress(Download download);
+        void onFinished(Download download);
+    }
+
+    public static final class Download {
+        final String key;
+        public final String url;
+        public final String fileName;
+        public volatile String mimeType;
+        public volatile int state = QUEUED;
+        public volatile long bytes = 0;
+        public volatile long total = -1;
+        volatile Target target;
+        final Map<String, String> headers;
+        private long lastProgress = 0;
+
+        Download(String key, String url, String fileName, String mimeType, Map<String, String> headers) {
+            this.key = key;
+            this.url = url;
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.headers = headers;
+        }
+    }
+
+    private final TargetFactory targetFactory;
+    private final Listener listener;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUE));
+    private final ConcurrentHashMap<String, Download> downloads = new ConcurrentHashMap<>();  //queued and running, by URL
+    private final ConcurrentHashMap<String, Target> hashes = new ConcurrentHashMap<>();  //content hash -> completed target
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+
+    public DownloadEngine(TargetFactory targetFactory, Listener listener) {
+        this.targetFactory = targetFactory;
+        this.listener = listener;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    //Returns null if the URL is already queued or running
+    public Download enqueue(String url, String fileName, String mimeType, Map<String, String> headers) {
+        final Download download = new Download(url, url, fileName, mimeType, headers);
+        if (downloads.putIfAbsent(url, download) != null) {
+            deduplicated.incrementAndGet();
+            return null;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runDownload(download);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            downloads.remove(url, download);
+            download.state = FAILED;
+            failed.incrementAndGet();
+            listener.onFinished(download);
+        }
+        return download;
+    }
+
+    private void runDownload(Download download) {
+        download.state = RUNNING;
+        started.incrementAndGet();
+        String hash = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            download.target = targetFactory.create(AssetCache.toHex(digest.digest(download.key.getBytes(StandardCharsets.UTF_8))), download.fileName, download.mimeType);
+            digest.reset();
+            if (download.url.startsWith("data:")) {
+                byte[] data = decodeDataUrl(download.url);
+                if (data == null) throw new IOException("Invalid data URL");
+                String url = download.url;
+                int end = url.indexOf(';');
+                if (end < 0 || end > url.indexOf(',')) end = url.indexOf(',');
+                if (end > 5) download.mimeType = url.substring(5, end);
+                download.total = data.length;
+                copy(new ByteArrayInputStream(data), download.target.openWrite(false), digest, download);
+            } else {
+                fetch(download, digest);
+            }
+            hash = AssetCache.toHex(digest.digest());
+            Target previous = hashes.putIfAbsent(hash, download.target);
+            if (previous != null && previous.exists()) {
+                download.target.delete();
+                download.state = DUPLICATE;
+                deduplicated.incrementAndGet();
+            } else {
+                if (previous != null) hashes.put(hash, download.target);  //the earlier file has been deleted
+                download.target.complete();
+                download.state = DONE;
+                completed.incrementAndGet();
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            if (hash != null) hashes.remove(hash, download.target);
+            if (download.target != null) download.target.delete();
+            download.state = FAILED;
+            failed.incrementAndGet();
+        }
+        downloads.remove(download.key, download);
+        listener.onFinished(download);
+    }
+    private void fetch(Download download, MessageDigest digest) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            digest.reset();
+            long offset = download.target.length();
+            HttpURLConnection connection = (HttpURLConnection) new URL(download.url).openConnection();
+            try {
+                connection.setConnectTimeout(TIMEOUT);
+                connection.setReadTimeout(TIMEOUT);
+                if (download.headers != null) {
+                    for (Map.Entry<String, String> header : download.headers.entrySet()) {
+                        if (header.getValue() != null) connection.setRequestProperty(header.getKey(), header.getValue());
+                    }
+                }
+                if (offset > 0) connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                int code = connection.getResponseCode();
+                boolean append = false;
+                if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                    //Hash what is already there, then continue where the last attempt stopped
+                    try (InputStream existing = download.target.openRead()) {
+                        byte[] buffer = new byte[16384];
+                        int read;
+                        while ((read = existing.read(buffer)) != -1) digest.update(buffer, 0, read);
+                    }
+                    append = true;
+                    download.bytes = offset;
+                    resumed.incrementAndGet();
+                } else if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + code + " for " + download.url);
+                } else {
+                    download.bytes = 0;
+                }
+                long length = connection.getContentLength();
+                download.total = length < 0 ? -1 : length + (append ? offset : 0);
+                String contentType = connection.getContentType();
+                if (contentType != null) download.mimeType = contentType.split(";")[0].trim();
+                copy(connection.getInputStream(), download.target.openWrite(append), digest, download);
+                return;
+            } catch (IOException e) {
+                lastError = e;
+            } finally {
+                connection.disconnect();
+            }
+        }
+        throw lastError;
+    }
+
+    private void copy(InputStream in, OutputStream out, MessageDigest digest, Download download) throws IOException {
+        try {
+            byte[] buffer = new byte[16384];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                download.bytes += read;
+                bytesTotal.addAndGet(read);
+                long now = System.currentTimeMillis();
+                if (now - download.lastProgress > PROGRESS_INTERVAL) {
+                    download.lastProgress = now;
+                    listener.onProgress(download);
+                }
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static byte[] decodeDataUrl(String url) {
+        int comma = url.indexOf(',');
+        if (comma < 0) return null;
+        String meta = url.substring(0, comma);
+        String payload = url.substring(comma + 1);
+        try {
+            if (meta.endsWith(";base64")) return Base64.decode(payload, Base64.DEFAULT);
+            return URLDecoder.decode(payload, "UTF-8").getBytes("UTF-8");
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public List<Download> getQueue() {
+        return new ArrayList<>(downloads.values());
+    }
+
+    public String toText() {
+        StringBuilder text = new StringBuilder("Downloads\n");
+        text.append("started ").append(started.get())
+                .append(", completed ").append(completed.get())
+                .append(", failed ").append(failed.get())
+                .append(", deduplicated ").append(deduplicated.get())
+                .append(", resumed ").append(resumed.get())
+                .append(", ").append(bytesTotal.get() / 1024).append(" kB\n");
+        text.append("queued ").append(executor.getQueue().size()).append(", active ").append(executor.getActiveCount()).append('\n');
+        for (Download download : downloads.values()) {
+            if (download.state != RUNNING) continue;
+            text.append(download.fileName).append(": ").append(download.bytes / 1024);
+            if (download.total > 0) text.append(" / ").append(download.total / 1024);
+            text.append(" kB\n");
+        }
+        return text.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("started", started.get());
+        json.put("completed", completed.get());
+        json.put("failed", failed.get());
+        json.put("deduplicated", deduplicated.get());
+        json.put("resumed", resumed.get());
+        json.put("bytes", bytesTotal.get());
+        json.put("queued", executor.getQueue().size());
+        json.put("active", executor.getActiveCount());
+        return json;
+    }
+}
@@ -0,0 +1,76 @@
+package org.woheller69.huggingchat;
+
+import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
+
+/**
+ * Shows the progress of running downloads in an ongoing notification per download and the outcome in a toast.
+ * The engine reports progress at most every 250 ms per download, the notification is removed once it finishes.
+ */
+public class DownloadNotifier implements DownloadEngine.Listener {
+
+    private static final String CHANNEL = "downloads";
+
+    private final Context context;
+    private final NotificationManager manager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public DownloadNotifier(Context appContext) {
+        context = appContext;
+        manager = (NotificationManager) appContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) createChannel();
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void createChannel() {
+        NotificationChannel channel = new NotificationChannel(CHANNEL, context.getString(R.string.downloads_channel), NotificationManager.IMPORTANCE_LOW);
+        manager.createNotificationChannel(channel);
+    }
+
+    @SuppressWarnings("deprecation")
+    private Notification.Builder newBuilder() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) return new Notification.Builder(context, CHANNEL);
+        return new Notification.Builder(context);
+    }
+
+    private static int id(DownloadEngine.Download download) {
+        return download.url.hashCode();
+    }
+
+    @Override
+    public void onProgress(DownloadEngine.Download download) {
+        long total = download.total;
+        long bytes = download.bytes;
+        Notification.Builder builder = newBuilder()
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(download.fileName)
+                .setContentText(bytes / 1024 + (total > 0 ? " / " + total / 1024 : "") + " kB")
+                .setOngoing(true)
+                .setOnlyAlertOnce(true);
+        if (total > 0) {
+            builder.setProgress(100, (int) Math.min(100, bytes * 100 / total), false);
+        } else {
+            builder.setProgress(0, 0, true);
+        }
+        manager.notify(id(download), builder.build());
+    }
+
+    @Override
+    public void onFinished(final DownloadEngine.Download download) {
+        manager.cancel(id(download));
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int message = download.state == DownloadEngine.DONE ? R.string.download_done : download.state == DownloadEngine.DUPLICATE ? R.string.download_duplicate : R.string.download_failed;
+                Toast.makeText(context, context.getString(message, download.fileName), Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+}
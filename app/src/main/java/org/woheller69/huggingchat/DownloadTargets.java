@@ -0,0 +1,154 @@
+package org.woheller69.huggingchat;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class DownloadTargets {
+
+    static DownloadEngine.TargetFactory create(final Context context) {
+        return new DownloadEngine.TargetFactory() {
+            @Override
+            public DownloadEngine.Target create(String key, String fileName, String mimeType) throws IOException {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    return new MediaStoreTarget(context.getContentResolver(), fileName, mimeType);
+                } else {
+                    return new FileTarget(context, key, fileName, mimeType);
+                }
+            }
+        };
+    }
+
+    //Pending entry in the public Downloads collection, only visible to other apps once complete, each download inserts its own
+    @TargetApi(Build.VERSION_CODES.Q)
+    private static final class MediaStoreTarget implements DownloadEngine.Target {
+        private final ContentResolver resolver;
+        private final Uri uri;
+
+        MediaStoreTarget(ContentResolver resolver, String fileName, String mimeType) throws IOException {
+            this.resolver = resolver;
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Downloads.DISPLAY_NAME, fileName);
+            values.put(MediaStore.Downloads.MIME_TYPE, mimeType);
+            values.put(MediaStore.Downloads.RELATIVE_PATH, Environment.DIRECTORY_DOWNLOADS);
+            values.put(MediaStore.Downloads.IS_PENDING, 1);
+            uri = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
+            if (uri == null) throw new IOException("Cannot create " + fileName);
+        }
+
+        @Override
+        public long length() throws IOException {
+            try (ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r")) {
+                return descriptor == null ? 0 : descriptor.getStatSize();
+            }
+        }
+
+        @Override
+        public InputStream openRead() throws IOException {
+            InputStream in = resolver.openInputStream(uri);
+            if (in == null) throw new IOException("Cannot read " + uri);
+            return in;
+        }
+
+        @Override
+        public OutputStream openWrite(boolean append) throws IOException {
+            OutputStream out = resolver.openOutputStream(uri, append ? "wa" : "wt");
+            if (out == null) throw new IOException("Cannot write " + uri);
+            return out;
+        }
+
+        @Override
+        public void complete() {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Downloads.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+        }
+
+        @Override
+        public void delete() {
+            resolver.delete(uri, null, null);
+        }
+
+        @Override
+        public boolean exists() {
+            try (Cursor cursor = resolver.query(uri, new String[]{MediaStore.Downloads._ID}, null, null, null)) {
+                return cursor != null && cursor.moveToFirst();
+            }
+        }
+    }
+
+    //Partial file named after the download key in the public Download folder, renamed once complete
+    private static final class FileTarget implements DownloadEngine.Target {
+        private final Context context;
+        private final File dir;
+        private final String fileName;
+        private final String mimeType;
+        private final File part;
+        private volatile File file = null;
+
+        FileTarget(Context context, String key, String fileName, String mimeType) throws IOException {
+            this.context = context;
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            part = new File(dir, "." + key + ".part");
+            if (part.exists() && !part.delete()) throw new IOException("Cannot delete " + part);  //left behind by an earlier download
+        }
+
+        @Override
+        public long length() {
+            return part.length();
+        }
+
+        @Override
+        public InputStream openRead() throws IOException {
+            return new FileInputStream(part);
+        }
+
+        @Override
+        public OutputStream openWrite(boolean append) throws IOException {
+            return new FileOutputStream(part, append);
+        }
+
+        @Override
+        public void complete() throws IOException {
+            File file = new File(dir, fileName);
+            int dot = fileName.lastIndexOf('.');
+            String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+            String extension = dot > 0 ? fileName.substring(dot) : "";
+            for (int i = 1; file.exists(); i++) {
+                file = new File(dir, base + "-" + i + extension);
+            }
+            if (!part.renameTo(file)) throw new IOException("Cannot rename " + part);
+            this.file = file;
+            MediaScannerConnection.scanFile(context, new String[]{file.getAbsolutePath()}, new String[]{mimeType}, null);
+        }
+
+        @Override
+        public void delete() {
+            part.delete();
+        }
+
+        @Override
+        public boolean exists() {
+            File completed = file;
+            return completed == null || completed.exists();
+        }
+    }
+}
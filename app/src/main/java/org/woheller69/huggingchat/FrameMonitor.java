@@ -0,0 +1,166 @@
+package org.woheller69.huggingchat;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Main thread frame times from Choreographer callbacks, taken while the user touches or scrolls the chat.
+ * Callbacks are only posted for a short while after each touch, so an idle app is not woken up every vsync.
+ * Frames are counted separately before and after message virtualization is turned on, and the listener is told
+ * when the share of dropped frames in a window of frames exceeds the threshold. Main thread only.
+ */
+public class FrameMonitor implements Choreographer.FrameCallback {
+
+    public static final int BEFORE = 0;
+    public static final int AFTER = 1;
+    private static final String[] PHASES = {"before", "after"};
+
+    private static final long ACTIVE_WINDOW = 2000;  //ms after the last touch, covers flings
+    private static final int WINDOW = 120;           //vsyncs per jank decision
+    private static final double JANK_THRESHOLD = 0.2;
+    private static final int BUCKETS = 101;          //bucket i counts frames of i to i+1 ms, the last bucket takes the rest
+
+    public interface Listener {
+        void onJank(int droppedFrames, int frames);
+    }
+
+    private static FrameMonitor instance;
+
+    private long frameIntervalNanos = 1000000000L / 60;
+    private boolean started = false;
+    private boolean running = false;
+    private long lastTouch = 0;
+    private long lastFrameNanos = 0;
+    private int phase = BEFORE;
+    private Listener listener = null;
+
+    private final long[][] histograms = new long[PHASES.length][BUCKETS];
+    private final long[] frames = new long[PHASES.length];
+    private final long[] dropped = new long[PHASES.length];
+    private final int[] jankWindows = new int[PHASES.length];
+    private int windowFrames = 0;
+    private int windowDropped = 0;
+
+    public static synchronized FrameMonitor getInstance() {
+        if (instance == null) instance = new FrameMonitor();
+        return instance;
+    }
+
+    public void setRefreshRate(float hz) {
+        if (hz > 0) frameIntervalNanos = (long) (1000000000L / hz);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setPhase(int phase) {
+        this.phase = phase;
+        windowFrames = 0;
+        windowDropped = 0;
+    }
+
+    public void start() {
+        started = true;
+    }
+
+    public void stop() {
+        started = false;
+        if (running) Choreographer.getInstance().removeFrameCallback(this);
+        running = false;
+        lastFrameNanos = 0;
+    }
+
+    public void onTouch() {
+        lastTouch = SystemClock.uptimeMillis();
+        if (started && !running) {
+            running = true;
+            lastFrameNanos = 0;  //the first frame after a pause has no predecessor
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (lastFrameNanos > 0) record(frameTimeNanos - lastFrameNanos);
+        if (SystemClock.uptimeMillis() - lastTouch > ACTIVE_WINDOW) {
+            running = false;
+            lastFrameNanos = 0;
+            return;
+        }
+        lastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void record(long nanos) {
+        int missed = (int) Math.max(0, (nanos + frameIntervalNanos / 2) / frameIntervalNanos - 1);
+        histograms[phase][(int) Math.min(BUCKETS - 1, nanos / 1000000)]++;
+        frames[phase]++;
+        dropped[phase] += missed;
+        windowFrames += 1 + missed;
+        windowDropped += missed;
+        if (windowFrames >= WINDOW) {
+            int windowTotal = windowFrames;
+            int windowMissed = windowDropped;
+            windowFrames = 0;
+            windowDropped = 0;
+            if (windowMissed > JANK_THRESHOLD * windowTotal) {
+                jankWindows[phase]++;
+                if (listener != null) listener.onJank(windowMissed, windowTotal);
+            }
+        }
+    }
+
+    //Estimated percentile in milliseconds, taken as the upper bound of the matching bucket
+    private long percentile(int index, double p) {
+        long[] histogram = histograms[index];
+        if (frames[index] == 0) return 0;
+        long rank = (long) Math.ceil(p * frames[index]);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram[i];
+            if (count >= rank) return i + 1;
+        }
+        return BUCKETS;
+    }
+
+    public String toText() {
+        StringBuilder text = new StringBuilder("Frames (ms)\n");
+        text.append("refresh ").append(1000000000L / frameIntervalNanos).append(" Hz, virtualization ")
+                .append(phase == AFTER ? "on" : "off").append('\n');
+        for (int i = 0; i < PHASES.length; i++) {
+            long expected = frames[i] + dropped[i];
+            text.append(PHASES[i]).append(": ").append(frames[i]).append(" frames, dropped ").append(dropped[i])
+                    .append(expected > 0 ? " (" + (100 * dropped[i] / expected) + "%)" : "")
+                    .append(", janky windows ").append(jankWindows[i]).append('\n');
+            text.append("  p50 ").append(percentile(i, 0.5))
+                    .append(", p90 ").append(percentile(i, 0.9))
+                    .append(", p99 ").append(percentile(i, 0.99)).append('\n');
+        }
+        return text.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("frameIntervalNanos", frameIntervalNanos);
+        json.put("virtualized", phase == AFTER);
+        for (int i = 0; i < PHASES.length; i++) {
+            JSONObject phaseJson = new JSONObject();
+            phaseJson.put("frames", frames[i]);
+            phaseJson.put("dropped", dropped[i]);
+            phaseJson.put("jankWindows", jankWindows[i]);
+            phaseJson.put("p50Millis", percentile(i, 0.5));
+            phaseJson.put("p90Millis", percentile(i, 0.9));
+            phaseJson.put("p99Millis", percentile(i, 0.99));
+            JSONArray buckets = new JSONArray();
+            for (int j = 0; j < BUCKETS; j++) buckets.put(histograms[i][j]);
+            phaseJson.put("buckets1Millis", buckets);
+            json.put(PHASES[i], phaseJson);
+        }
+        return json;
+    }
+}
@@ -4,52 +4,47 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
-import android.preference.PreferenceManager;
 
 public class GithubStar {
-    public static void setAskForStar(boolean askForStar, Context context){
-        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor editor = prefManager.edit();
-        editor.putBoolean("askForStar", askForStar);
-        editor.apply();
+    public static void setAskForStar(final boolean askForStar){
+        Settings.getInstance().update(new Settings.Change() {
+            @Override
+            public void apply(Settings.Editor editor) {
+                editor.askForStar = askForStar;
+            }
+        });
     }
 
-    static boolean shouldShowStarDialog(Context context) {
-        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
-        int versionCode = prefManager.getInt("versionCode",0);
-        boolean askForStar=prefManager.getBoolean("askForStar",true);
-
-        if (prefManager.contains("versionCode") && BuildConfig.VERSION_CODE>versionCode && askForStar){ //not at first start, only after upgrade and only if use has not yet given a star or has declined
-            SharedPreferences.Editor editor = prefManager.edit();
-            editor.putInt("versionCode", BuildConfig.VERSION_CODE);
-            editor.apply();
-            return true;
-        } else {
-            SharedPreferences.Editor editor = prefManager.edit();
-            editor.putInt("versionCode", BuildConfig.VERSION_CODE);
-            editor.apply();
-            return false;
+    static boolean shouldShowStarDialog() {
+        Settings.Snapshot settings = Settings.getInstance().get();
+        int versionCode = settings.lastVersionCode;
+        if (versionCode != BuildConfig.VERSION_CODE) {
+            Settings.getInstance().update(new Settings.Change() {
+                @Override
+                public void apply(Settings.Editor editor) {
+                    editor.lastVersionCode = BuildConfig.VERSION_CODE;
+                }
+            });
         }
+        return versionCode != 0 && BuildConfig.VERSION_CODE > versionCode && settings.askForStar;  //not at first start, only after upgrade and only if use has not yet given a star or has declined
     }
 
     static void starDialog(Context context, String url){
-        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
-        if (prefManager.getBoolean("askForStar",true))    {
+        if (Settings.getInstance().get().askForStar)    {
             AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(context);
             alertDialogBuilder.setMessage(R.string.dialog_StarOnGitHub);
             alertDialogBuilder.setPositiveButton(context.getString(R.string.dialog_OK_button), new DialogInterface.OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
                     context.startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
-                    setAskForStar(false, context);
+                    setAskForStar(false);
                 }
             });
             alertDialogBuilder.setNegativeButton(context.getString(R.string.dialog_NO_button), new DialogInterface.OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
-                    setAskForStar(false, context);
+                    setAskForStar(false);
                 }
             });
             alertDialogBuilder.setNeutralButton(context.getString(R.string.dialog_Later_button), null);
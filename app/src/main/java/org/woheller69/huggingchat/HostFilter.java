@@ -0,0 +1,99 @@
+package org.woheller69.huggingchat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Allowlist compiled into a trie over the reversed host name.
+ * A host is allowed if one of the rules matches it on a label boundary,
+ * e.g. "huggingface.co" allows "huggingface.co" and "cdn-lfs.huggingface.co", but not "nothuggingface.co".
+ * Lookups walk the host once from its end and do not allocate. Recent verdicts are kept in two direct-mapped arrays
+ * indexed by the host's hash, one for allowed and one for denied hosts, without locking: a slot holds a single
+ * immutable String, so a racing reader sees either the old or the new host and at worst walks the trie again.
+ */
+public class HostFilter {
+
+    //The app's default allowlist, also used by the benchmarks
+    public static final List<String> DEFAULT_DOMAINS = Collections.unmodifiableList(Arrays.asList("huggingface.co", "huggingface.co.", "pollinations.ai"));
+
+    private static final int CACHE_SIZE = 256;  //power of two
+    private static final int MASK = CACHE_SIZE - 1;
+
+    private final Node root = new Node();
+    private final String[] allowedHosts = new String[CACHE_SIZE];
+    private final String[] deniedHosts = new String[CACHE_SIZE];
+
+    public HostFilter(List<String> domains) {
+        for (String domain : domains) {
+            add(domain);
+        }
+    }
+
+    private void add(String domain) {
+        Node node = root;
+        for (int i = domain.length() - 1; i >= 0; i--) {
+            node = node.getOrAddChild(Character.toLowerCase(domain.charAt(i)));
+        }
+        node.terminal = true;
+    }
+
+    public boolean isAllowed(String host) {
+        if (host == null || host.isEmpty()) return false;
+        int index = host.hashCode() & MASK;
+        if (host.equals(allowedHosts[index])) return true;
+        if (host.equals(deniedHosts[index])) return false;
+        boolean allowed = match(host);
+        if (allowed) {
+            allowedHosts[index] = host;
+        } else {
+            deniedHosts[index] = host;
+        }
+        return allowed;
+    }
+
+    private boolean match(String host) {
+        Node node = root;
+        for (int i = host.length() - 1; i >= 0; i--) {
+            node = node.getChild(Character.toLowerCase(host.charAt(i)));
+            if (node == null) return false;
+            if (node.terminal && (i == 0 || host.charAt(i - 1) == '.')) return true;
+        }
+        return false;
+    }
+
+    public void clearCache() {
+        Arrays.fill(allowedHosts, null);
+        Arrays.fill(deniedHosts, null);
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        Node getChild(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        Node getOrAddChild(char c) {
+            Node child = getChild(c);
+            if (child == null) {
+                int n = keys.length;
+                char[] newKeys = new char[n + 1];
+                Node[] newChildren = new Node[n + 1];
+                System.arraycopy(keys, 0, newKeys, 0, n);
+                System.arraycopy(children, 0, newChildren, 0, n);
+                child = new Node();
+                newKeys[n] = c;
+                newChildren[n] = child;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package org.woheller69.huggingchat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches allowed GET requests in-app instead of leaving them to the network stack of the WebView.
+ * HttpURLConnection keeps idle connections in its keep-alive pool, responses go through whatever ResponseCache
+ * is installed. Gzip is requested and decoded here rather than left to the platform, so it works the same everywhere.
+ * Bodies are returned as streams, so the WebView can start parsing while the rest is still downloading.
+ * Returns null whenever the WebView should load the request itself.
+ */
+public class HttpStack {
+
+    public interface CookieJar {
+        String getCookie(String url);
+        void setCookie(String url, String value);
+    }
+
+    public static final class Response {
+        public final int statusCode;
+        public final String reasonPhrase;
+        public final String mimeType;
+        public final String encoding;
+        public final Map<String, String> headers;
+        public final InputStream data;
+
+        Response(int statusCode, String reasonPhrase, String mimeType, String encoding, Map<String, String> headers, InputStream data) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.headers = headers;
+            this.data = data;
+        }
+    }
+
+    //Handled by HttpURLConnection or by us, must not be copied from the WebView's request
+    private static final String[] SKIP_REQUEST_HEADERS = {"accept-encoding", "cookie", "if-none-match", "if-modified-since", "if-range", "connection"};
+    //No longer valid once the body has been decoded, or only meaningful for the hop to the server
+    private static final String[] SKIP_RESPONSE_HEADERS = {"content-encoding", "content-length", "transfer-encoding", "connection", "keep-alive", "set-cookie"};
+    //Set by the Android implementation of HttpURLConnection, e.g. "CACHE 200" or "NETWORK 200"
+    private static final String RESPONSE_SOURCE = "X-Android-Response-Source";
+
+    //Bucket i counts requests that took less than 2^i milliseconds, the last bucket takes the rest
+    private static final int BUCKETS = 16;
+    private static final int RECENT = 20;
+
+    private final CookieJar cookieJar;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLongArray headerLatency = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray totalLatency = new AtomicLongArray(BUCKETS);
+    private final Object[][] recent = new Object[RECENT][];
+    private int recentCount = 0;
+
+    public HttpStack(CookieJar cookieJar, int connectTimeout, int readTimeout) {
+        this.cookieJar = cookieJar;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    //Sizes the keep-alive pool shared by all HttpURLConnections, call before the first connection is opened
+    public static void configurePool(int maxIdleConnections, long keepAliveMillis) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveMillis));
+    }
+
+    public Response fetch(String url, Map<String, String> requestHeaders) {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        if (requestHeaders != null) {
+            for (String name : requestHeaders.keySet()) {
+                if (name.equalsIgnoreCase("Range")) {
+                    //Partial responses for media elements stay with the WebView
+                    fallbacks.incrementAndGet();
+                    return null;
+                }
+            }
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setInstanceFollowRedirects(false);  //redirect targets have to pass the allowlist, let the WebView follow them
+            if (requestHeaders != null) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    if (!skip(header.getKey(), SKIP_REQUEST_HEADERS)) connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            String cookie = cookieJar != null ? cookieJar.getCookie(url) : null;
+            if (cookie != null && !cookie.isEmpty()) connection.setRequestProperty("Cookie", cookie);
+
+            int statusCode = connection.getResponseCode();
+            long headerNanos = System.nanoTime() - start;
+            Map<String, List<String>> headerFields = connection.getHeaderFields();
+            if (cookieJar != null) {
+                for (Map.Entry<String, List<String>> field : headerFields.entrySet()) {
+                    if (field.getKey() != null && field.getKey().equalsIgnoreCase("Set-Cookie")) {
+                        for (String value : field.getValue()) cookieJar.setCookie(url, value);
+                    }
+                }
+            }
+            if (statusCode < 200 || (statusCode >= 300 && statusCode < 400)) {
+                //WebResourceResponse cannot carry redirects
+                connection.disconnect();
+                fallbacks.incrementAndGet();
+                return null;
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            String source = null;
+            for (Map.Entry<String, List<String>> field : headerFields.entrySet()) {
+                String name = field.getKey();
+                if (name == null || skip(name, SKIP_RESPONSE_HEADERS)) continue;
+                if (name.equalsIgnoreCase(RESPONSE_SOURCE)) {
+                    source = field.getValue().isEmpty() ? null : field.getValue().get(0);
+                    continue;
+                }
+                if (name.startsWith("X-Android-")) continue;
+                headers.put(name, join(field.getValue()));
+            }
+            boolean cached = source != null && source.startsWith("CACHE");
+            if (cached) cacheHits.incrementAndGet();
+
+            String mimeType = "application/octet-stream";
+            String encoding = null;
+            String contentType = connection.getContentType();
+            if (contentType != null) {
+                String[] parts = contentType.split(";");
+                if (!parts[0].trim().isEmpty()) mimeType = parts[0].trim();
+                for (int i = 1; i < parts.length; i++) {
+                    String part = parts[i].trim();
+                    if (part.toLowerCase(Locale.ROOT).startsWith("charset=")) encoding = part.substring(8).replace("\"", "");
+                }
+            }
+            String reasonPhrase = connection.getResponseMessage();
+            if (reasonPhrase == null || reasonPhrase.isEmpty()) reasonPhrase = statusCode < 400 ? "OK" : "Error";  //must not be empty
+            InputStream body = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (body == null) body = new ByteArrayInputStream(new byte[0]);
+            else if ("gzip".equalsIgnoreCase(connection.getContentEncoding()) && statusCode != HttpURLConnection.HTTP_NO_CONTENT) {
+                body = new GZIPInputStream(body);
+            }
+
+            return new Response(statusCode, reasonPhrase, mimeType, encoding, headers,
+                    new TimedInputStream(body, url, statusCode, cached, start, headerNanos));
+        } catch (IOException e) {
+            if (connection != null) connection.disconnect();
+            errors.incrementAndGet();
+            BandwidthEstimator.getInstance().addFailure();
+            return null;  //the WebView retries on its own stack and shows its own error page
+        } catch (RuntimeException e) {
+            //e.g. a header value HttpURLConnection refuses, not a network problem
+            if (connection != null) connection.disconnect();
+            errors.incrementAndGet();
+            return null;
+        }
+    }
+
+    private static boolean skip(String name, String[] names) {
+        for (String skip : names) {
+            if (skip.equalsIgnoreCase(name)) return true;
+        }
+        return false;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) joined.append(", ");
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    private static int bucket(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private void finished(String url, int statusCode, boolean cached, long start, long headerNanos, long length, boolean failed) {
+        long headerMillis = headerNanos / 1000000;
+        long totalMillis = (System.nanoTime() - start) / 1000000;
+        if (!cached && !failed) {
+            BandwidthEstimator.getInstance().addRtt(headerMillis);
+            BandwidthEstimator.getInstance().addTransfer(length, totalMillis - headerMillis);
+        }
+        headerLatency.incrementAndGet(bucket(headerMillis));
+        totalLatency.incrementAndGet(bucket(totalMillis));
+        bytes.addAndGet(length);
+        if (failed) errors.incrementAndGet();
+        synchronized (recent) {
+            recent[recentCount % RECENT] = new Object[]{url, statusCode, headerMillis, totalMillis, length};
+            recentCount++;
+        }
+    }
+
+    //Estimated percentile in milliseconds, taken as the upper bound of the matching bucket
+    private static long percentile(AtomicLongArray histogram, double p) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += histogram.get(i);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram.get(i);
+            if (count >= rank) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public String toText() {
+        StringBuilder text = new StringBuilder("HTTP stack (ms)\n");
+        text.append("requests ").append(requests.get())
+                .append(", cache hits ").append(cacheHits.get())
+                .append(", fallbacks ").append(fallbacks.get())
+                .append(", errors ").append(errors.get())
+                .append(", ").append(bytes.get() / 1024).append(" kB\n");
+        text.append("headers p50 ").append(percentile(headerLatency, 0.5))
+                .append(", p95 ").append(percentile(headerLatency, 0.95)).append('\n');
+        text.append("total p50 ").append(percentile(totalLatency, 0.5))
+                .append(", p95 ").append(percentile(totalLatency, 0.95)).append('\n');
+        synchronized (recent) {
+            int first = Math.max(0, recentCount - RECENT);
+            for (int i = recentCount - 1; i >= first; i--) {
+                Object[] request = recent[i % RECENT];
+                text.append(request[1]).append(' ').append(request[2]).append('/').append(request[3])
+                        .append(" ms ").append(request[0]).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("requests", requests.get());
+        json.put("cacheHits", cacheHits.get());
+        json.put("fallbacks", fallbacks.get());
+        json.put("errors", errors.get());
+        json.put("bytes", bytes.get());
+        JSONArray headerBuckets = new JSONArray();
+        JSONArray totalBuckets = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            headerBuckets.put(headerLatency.get(i));
+            totalBuckets.put(totalLatency.get(i));
+        }
+        json.put("headersBucketsLog2Millis", headerBuckets);
+        json.put("totalBucketsLog2Millis", totalBuckets);
+        JSONArray requestsJson = new JSONArray();
+        synchronized (recent) {
+            for (int i = Math.max(0, recentCount - RECENT); i < recentCount; i++) {
+                Object[] request = recent[i % RECENT];
+                JSONObject requestJson = new JSONObject();
+                requestJson.put("url", request[0]);
+                requestJson.put("status", request[1]);
+                requestJson.put("headersMs", request[2]);
+                requestJson.put("totalMs", request[3]);
+                requestJson.put("bytes", request[4]);
+                requestsJson.put(requestJson);
+            }
+        }
+        json.put("recent", requestsJson);
+        return json;
+    }
+
+    //Records the timing once the WebView has read the body to the end or closed it
+    private final class TimedInputStream extends FilterInputStream {
+        private final String url;
+        private final int statusCode;
+        private final boolean cached;
+        private final long start;
+        private final long headerNanos;
+        private long length = 0;
+        private boolean done = false;
+
+        TimedInputStream(InputStream in, String url, int statusCode, boolean cached, long start, long headerNanos) {
+            super(in);
+            this.url = url;
+            this.statusCode = statusCode;
+            this.cached = cached;
+            this.start = start;
+            this.headerNanos = headerNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int read = super.read();
+                if (read == -1) finish(false);
+                else length++;
+                return read;
+            } catch (IOException e) {
+                finish(true);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            try {
+                int read = super.read(buffer, offset, count);
+                if (read == -1) finish(false);
+                else length += read;
+                return read;
+            } catch (IOException e) {
+                finish(true);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish(false);
+            super.close();  //returns the connection to the keep-alive pool if the body was read completely
+        }
+
+        private void finish(boolean failed) {
+            if (done) return;
+            done = true;
+            finished(url, statusCode, cached, start, headerNanos, length, failed);
+        }
+    }
+}
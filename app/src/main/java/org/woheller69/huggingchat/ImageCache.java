@@ -0,0 +1,317 @@
+package org.woheller69.huggingchat;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier cache for generated images, a byte-bounded LRU in memory in front of a {@link DiskCache}.
+ * Generated images do not change for a given URL, so they are kept regardless of their cache headers.
+ * Concurrent requests for the same URL wait for a single upstream fetch. Requesting an image starts its generation,
+ * so once the request has reached the server its response is handed to the WebView even if it is not cached,
+ * e.g. an error status or an image too large for the cache, instead of letting the WebView request it a second time.
+ * Disk entries hold the MIME type (as written by DataOutputStream.writeUTF), the length of the image and its bytes.
+ */
+public class ImageCache {
+
+    private static final int TIMEOUT = 60000;  //generating an image takes a while
+    private static final int MAX_IMAGE_BYTES = 20 * 1024 * 1024;
+
+    public static final class Image {
+        public final int statusCode;
+        public final String reasonPhrase;
+        public final String mimeType;
+        public final InputStream data;
+
+        Image(int statusCode, String reasonPhrase, String mimeType, InputStream data) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.mimeType = mimeType;
+            this.data = data;
+        }
+    }
+
+    private static final class Entry {
+        final int statusCode;
+        final String reasonPhrase;
+        final String mimeType;
+        final byte[] data;
+        final InputStream rest;  //remainder of a body too large to buffer, can only be read by one caller
+
+        Entry(String mimeType, byte[] data) {
+            this(HttpURLConnection.HTTP_OK, "OK", mimeType, data, null);
+        }
+
+        Entry(int statusCode, String reasonPhrase, String mimeType, byte[] data, InputStream rest) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.mimeType = mimeType;
+            this.data = data;
+            this.rest = rest;
+        }
+
+        boolean isCacheable() {
+            return statusCode == HttpURLConnection.HTTP_OK && rest == null && mimeType.startsWith("image/");
+        }
+
+        Image toImage() {
+            InputStream in = new ByteArrayInputStream(data);
+            return new Image(statusCode, reasonPhrase, mimeType, rest != null ? new SequenceInputStream(in, rest) : in);
+        }
+    }
+
+    private final DiskCache disk;
+    private final long maxMemoryBytes;
+    private long memoryBytes = 0;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(32, 0.75f, true);
+    private final ConcurrentHashMap<String, FutureTask<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong uncached = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    //Image elements ask for image/* first, image.pollinations.ai serves the generated images below /prompt/
+    public static boolean isImageRequest(String path, Map<String, String> requestHeaders) {
+        if (path != null && path.startsWith("/prompt/")) return true;
+        if (requestHeaders == null) return false;
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Accept")) return header.getValue() != null && header.getValue().startsWith("image/");
+        }
+        return false;
+    }
+
+    public ImageCache(File dir, long maxDiskBytes, long maxMemoryBytes) {
+        disk = new DiskCache(dir, maxDiskBytes);
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    //Returns the image from memory or disk, fetching it once for all concurrent callers if needed, or null to let the WebView load it itself
+    public Image get(final String url, final Map<String, String> requestHeaders) {
+        final String key;
+        try {
+            key = AssetCache.toHex(MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        Entry entry = getMemory(key);
+        if (entry != null) {
+            memoryHits.incrementAndGet();
+            return served(entry);
+        }
+
+        FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                Entry entry = readDisk(key);
+                if (entry != null) {
+                    diskHits.incrementAndGet();
+                    bytesSaved.addAndGet(entry.data.length);
+                } else {
+                    misses.incrementAndGet();
+                    entry = fetch(url, requestHeaders);
+                    if (entry == null) return null;
+                    if (!entry.isCacheable()) {
+                        uncached.incrementAndGet();
+                        return entry;
+                    }
+                    writeDisk(key, entry);
+                }
+                putMemory(key, entry);
+                return entry;
+            }
+        });
+        FutureTask<Entry> running = inFlight.putIfAbsent(key, task);
+        boolean owner = running == null;
+        if (owner) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            entry = running.get();
+            if (entry == null) return null;
+            if (!owner) {
+                if (entry.rest != null) return null;  //streamed to the caller that fetched it
+                coalesced.incrementAndGet();
+                return served(entry);
+            }
+            return entry.toImage();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private Image served(Entry entry) {
+        bytesSaved.addAndGet(entry.data.length);
+        return entry.toImage();
+    }
+
+    private synchronized Entry getMemory(String key) {
+        return memory.get(key);
+    }
+
+    private synchronized void putMemory(String key, Entry entry) {
+        if (entry.data.length > maxMemoryBytes / 4) return;  //would push out too much
+        Entry old = memory.put(key, entry);
+        if (old != null) memoryBytes -= old.data.length;
+        memoryBytes += entry.data.length;
+        trimMemoryTo(maxMemoryBytes);
+    }
+
+    private void trimMemoryTo(long bytes) {
+        Iterator<Map.Entry<String, Entry>> iterator = memory.entrySet().iterator();
+        while (memoryBytes > bytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().getValue().data.length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clearMemory() {
+        trimMemoryTo(0);
+    }
+
+    private Entry readDisk(String key) {
+        File file = disk.get(key);
+        if (file == null) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            String mimeType = in.readUTF();
+            int length = in.readInt();
+            if (length != in.available()) throw new IOException("Corrupt image cache entry " + key);
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return new Entry(mimeType, data);
+        } catch (IOException e) {
+            disk.remove(key);
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, Entry entry) {
+        File tmp = null;
+        try {
+            tmp = disk.newTempFile();
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeUTF(entry.mimeType);
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+            disk.commit(key, tmp);
+            tmp = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    //Throws only if the request did not reach the server, so the WebView can still try it on its own
+    private Entry fetch(String url, Map<String, String> requestHeaders) throws IOException {
+        long start = System.currentTimeMillis();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        boolean connected = false;
+        boolean streaming = false;
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            if (requestHeaders != null) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    if (!header.getKey().equalsIgnoreCase("Range")) connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            connection.connect();
+            connected = true;
+            int statusCode = connection.getResponseCode();
+            String reasonPhrase = connection.getResponseMessage();
+            if (reasonPhrase == null || reasonPhrase.isEmpty()) reasonPhrase = statusCode < 400 ? "OK" : "Error";  //must not be empty
+            String mimeType = connection.getContentType();
+            if (mimeType == null) mimeType = "application/octet-stream";
+            int separator = mimeType.indexOf(';');
+            if (separator >= 0) mimeType = mimeType.substring(0, separator).trim();
+            long headers = System.currentTimeMillis();
+            BandwidthEstimator.getInstance().addRtt(headers - start);
+
+            InputStream in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in == null) return new Entry(statusCode, reasonPhrase, mimeType, new byte[0], null);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 16384));
+            try {
+                byte[] buffer = new byte[16384];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    if (out.size() > MAX_IMAGE_BYTES) {
+                        streaming = true;  //the connection is released when the WebView closes the stream
+                        return new Entry(statusCode, reasonPhrase, mimeType, out.toByteArray(), in);
+                    }
+                }
+            } finally {
+                if (!streaming) in.close();
+            }
+            BandwidthEstimator.getInstance().addTransfer(out.size(), System.currentTimeMillis() - headers);
+            return new Entry(statusCode, reasonPhrase, mimeType, out.toByteArray(), null);
+        } catch (IOException e) {
+            BandwidthEstimator.getInstance().addFailure();
+            if (!connected) throw e;
+            //The image may be generating already, a second request from the WebView would start it again
+            return new Entry(HttpURLConnection.HTTP_BAD_GATEWAY, "Bad Gateway", "text/plain", new byte[0], null);
+        } finally {
+            if (!streaming) connection.disconnect();
+        }
+    }
+
+    public synchronized String toText() {
+        return "Image cache\n"
+                + memory.size() + " in memory, " + memoryBytes / 1024 + " kB, "
+                + disk.count() + " on disk, " + disk.size() / 1024 + " kB\n"
+                + "memory hits " + memoryHits.get() + ", disk hits " + diskHits.get()
+                + ", misses " + misses.get() + ", coalesced " + coalesced.get() + ", uncached " + uncached.get()
+                + ", saved " + bytesSaved.get() / 1024 + " kB\n";
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("memoryEntries", memory.size());
+        json.put("memoryBytes", memoryBytes);
+        json.put("diskEntries", disk.count());
+        json.put("diskBytes", disk.size());
+        json.put("memoryHits", memoryHits.get());
+        json.put("diskHits", diskHits.get());
+        json.put("misses", misses.get());
+        json.put("coalesced", coalesced.get());
+        json.put("uncached", uncached.get());
+        json.put("bytesSaved", bytesSaved.get());
+        return json;
+    }
+}
@@ -18,61 +18,146 @@ import static android.webkit.WebView.HitTestResult.SRC_ANCHOR_TYPE;
 import static android.webkit.WebView.HitTestResult.SRC_IMAGE_ANCHOR_TYPE;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.Activity;
-import android.app.DownloadManager;
+import android.app.AlertDialog;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
 import android.net.Uri;
+import android.net.http.HttpResponseCache;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import android.webkit.ConsoleMessage;
 import android.webkit.CookieManager;
+import android.webkit.JavascriptInterface;
+import android.webkit.RenderProcessGoneDetail;
 import android.webkit.URLUtil;
 import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceError;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
-import android.webkit.WebStorage;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.Button;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends Activity {
 
     private SwipeTouchListener swipeTouchListener;
     private Button resetButton = null;
+    private Button searchButton = null;
+    private Button settingsButton = null;
+    private Button chatsButton = null;
+    private View progressIndicator = null;
+    private ResetPipeline resetPipeline = null;
     private WebView chatWebView = null;
+    private WebViewPool webViewPool = null;
+    private boolean timersPaused = false;
+    private boolean virtualizing = false;
     private WebSettings chatWebSettings = null;
     private CookieManager chatCookieManager = null;
     private final Context context = this;
     private String TAG ="huggingChat";
-    private String urlToLoad = "https://huggingface.co/chat/";
-
-    private static final ArrayList<String> allowedDomains = new ArrayList<String>();
+    private String urlToLoad = Settings.DEFAULT_START_URL;
+
+    private static volatile HostFilter hostFilter = null;
+    private static Future<HostFilter> hostFilterFuture = null;
+    private static volatile BlocklistEngine blocklistEngine = null;
+    static volatile AssetCache assetCache = null;
+    private static final HostFilter ASSET_HOSTS = new HostFilter(Collections.singletonList("huggingface.co"));
+    static volatile ImageCache imageCache = null;
+    private static final HostFilter IMAGE_HOSTS = new HostFilter(Collections.singletonList("pollinations.ai"));
+    static DownloadEngine downloadEngine = null;
+    static volatile HttpStack httpStack = null;
+    private static ConversationArchive conversationArchive = null;
+    private static final String DOWNLOAD_BRIDGE = "hugAssistDownload";
+    private final Set<String> pendingBlobs = Collections.synchronizedSet(new HashSet<String>());
+    private final Handler hrefHandler = new Handler(Looper.getMainLooper());
+    private final NetworkMetrics networkMetrics = NetworkMetrics.getInstance();
+
+    private long pageStart = 0;
+    private boolean commitPending = false;
+    private ConnectivityManager.NetworkCallback networkCallback = null;
+    private String lastUrl = null;
+    private int lastScroll = 0;
+    private int pendingScroll = 0;
+    private final Handler memoryHandler = new Handler(Looper.getMainLooper());
+    private final Runnable memorySampler = new Runnable() {
+        @Override
+        public void run() {
+            sampleMemory();
+            memoryHandler.postDelayed(this, MemoryMonitor.INTERVAL);
+        }
+    };
 
     private ValueCallback<Uri[]> mUploadMessage;
     private final static int FILE_CHOOSER_REQUEST_CODE = 1;
+    private final static int STORAGE_PERMISSION_REQUEST_CODE = 101;
+    private final static int NOTIFICATION_PERMISSION_REQUEST_CODE = 102;
+    private String pendingDownload = null;
+
+    static final ThreadPoolExecutor backgroundExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        backgroundExecutor.allowCoreThreadTimeOut(true);
+    }
 
     @Override
     protected void onPause() {
-        if (chatCookieManager!=null) chatCookieManager.flush();
+        if (chatCookieManager!=null) CookieFlusher.getInstance().flushNow();
+        Settings.getInstance().flush();
+        memoryHandler.removeCallbacks(memorySampler);
+        FrameMonitor.getInstance().stop();
+        FrameMonitor.getInstance().setListener(null);
+        if (Settings.getInstance().get().multiChat) {  //timers are paused for all WebViews at once, so only while none is visible
+            chatWebView.pauseTimers();
+            timersPaused = true;
+        }
         swipeTouchListener = null;
         super.onPause();
     }
@@ -82,17 +167,43 @@ public class MainActivity extends Activity {
         super.onResume();
 
         swipeTouchListener = new SwipeTouchListener(context) {
+            @SuppressLint("ClickableViewAccessibility")
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                FrameMonitor.getInstance().onTouch();
+                return super.onTouch(v, event);
+            }
+
             public void onSwipeBottom() {
                 if (!chatWebView.canScrollVertically(0)) {
                     resetButton.setVisibility(View.VISIBLE);
+                    searchButton.setVisibility(View.VISIBLE);
+                    settingsButton.setVisibility(View.VISIBLE);
+                    if (Settings.getInstance().get().multiChat) chatsButton.setVisibility(View.VISIBLE);
                 }
             }
             public void onSwipeTop(){
-                resetButton.setVisibility(View.GONE);
+                hideButtons();
             }
         };
 
-        chatWebView.setOnTouchListener(swipeTouchListener);
+        for (WebView webView : webViewPool.getWebViews()) webView.setOnTouchListener(swipeTouchListener);
+        if (timersPaused) {
+            chatWebView.resumeTimers();
+            timersPaused = false;
+        }
+        memoryHandler.postDelayed(memorySampler, MemoryMonitor.INTERVAL);
+        FrameMonitor.getInstance().setListener(new FrameMonitor.Listener() {
+            @Override
+            public void onJank(int droppedFrames, int frames) {
+                if (!virtualizing && Settings.LONG_CHAT_AUTO.equals(Settings.getInstance().get().longChatMode)) {
+                    Log.i(TAG, "[FrameMonitor] " + droppedFrames + " of " + frames + " frames dropped, collapsing offscreen messages");
+                    setVirtualizing(true);
+                }
+            }
+        });
+        FrameMonitor.getInstance().start();
+        checkConnectivity();
     }
 
     @Override
@@ -103,24 +214,123 @@ public class MainActivity extends Activity {
         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.ACTIVITY_CREATED);
+
+        //Start independent stages in the background, they overlap with loading the WebView provider in setContentView
+        Settings.preload(this);
+        if (hostFilter == null && hostFilterFuture == null) {
+            hostFilterFuture = backgroundExecutor.submit(new Callable<HostFilter>() {
+                @Override
+                public HostFilter call() {
+                    return initURLs();
+                }
+            });
+        }
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (GithubStar.shouldShowStarDialog()) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isFinishing()) GithubStar.starDialog(context, "https://github.com/woheller69/huggingassist");
+                        }
+                    });
+                }
+            }
+        });
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getAssetCache(getApplicationContext());
+                Settings.Snapshot settings = Settings.getInstance().get();
+                if (blocklistEngine == null && settings.useBlocklist) {
+                    blocklistEngine = loadBlocklist(getApplicationContext(), settings.blocklistRules);
+                }
+                if (httpStack == null && settings.appHttpStack) {
+                    httpStack = createHttpStack(getApplicationContext());
+                }
+            }
+        });
+
         setContentView(R.layout.activity_main);
 
         //Create the WebView
         chatWebView = findViewById(R.id.chatWebView);
+        progressIndicator = findViewById(R.id.progressIndicator);
         resetButton = findViewById(R.id.resetButton);
+        searchButton = findViewById(R.id.searchButton);
+        settingsButton = findViewById(R.id.settingsButton);
+        chatsButton = findViewById(R.id.chatsButton);
+        resetButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                DebugDialog.show(context, webViewPool);
+                return true;
+            }
+        });
+
+        BandwidthEstimator.getInstance().setListener(new BandwidthEstimator.Listener() {
+            @Override
+            public void onQualityChanged(final int previous, final int quality) {
+                Log.i(TAG, "[BandwidthEstimator] " + BandwidthEstimator.name(previous) + " -> " + BandwidthEstimator.name(quality));
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (webViewPool == null) return;
+                        for (WebView webView : webViewPool.getWebViews()) webView.getSettings().setCacheMode(cacheMode());
+                    }
+                });
+            }
+        });
+        registerNetworkCallback();
 
         //Set cookie options
         chatCookieManager = CookieManager.getInstance();
         chatCookieManager.setAcceptCookie(true);
-        chatCookieManager.setAcceptThirdPartyCookies(chatWebView, false);
 
-        //Restrict what gets loaded
-        initURLs();
-        registerForContextMenu(chatWebView);
+        Settings.Snapshot settings = Settings.getInstance().get();  //read while setContentView loaded the WebView provider
+        urlToLoad = settings.startUrl;
+        setupWebView(chatWebView);
+        webViewPool = new WebViewPool(chatWebView, urlToLoad, new WebViewPool.Factory() {
+            @Override
+            public WebView create() {
+                WebView webView = new WebView(context);
+                setupWebView(webView);
+                if (swipeTouchListener != null) webView.setOnTouchListener(swipeTouchListener);
+                return webView;
+            }
+
+            @Override
+            public void release(WebView webView) {
+                unregisterForContextMenu(webView);
+            }
+        }, chatPoolBudget(settings));
+        FrameMonitor.getInstance().setRefreshRate(getWindowManager().getDefaultDisplay().getRefreshRate());
+        if (Settings.LONG_CHAT_ON.equals(settings.longChatMode)) {
+            virtualizing = true;  //the script is injected in onPageFinished
+            FrameMonitor.getInstance().setPhase(FrameMonitor.AFTER);
+        }
+
+        StartupTrace.mark(StartupTrace.WEBVIEW_READY);
+
+        //Load HuggingChat
+        chatWebView.loadUrl(urlToLoad);
+    }
 
-        chatWebView.setWebChromeClient(new WebChromeClient(){
+    //Applies cookie options, clients, bridges and settings, also used for WebViews created after a renderer crash
+    private void setupWebView(WebView webView) {
+        chatCookieManager.setAcceptThirdPartyCookies(webView, false);
+        registerForContextMenu(webView);
+        webView.addJavascriptInterface(new DownloadBridge(), DOWNLOAD_BRIDGE);
+        webView.addJavascriptInterface(new ArchiveBridge(getConversationArchive(getApplicationContext())), ArchiveBridge.NAME);
+        webView.addJavascriptInterface(StreamingMetrics.getInstance(), StreamingMetrics.NAME);
+        webView.addJavascriptInterface(PageTelemetry.getInstance(), PageTelemetry.NAME);
+
+        webView.setWebChromeClient(new WebChromeClient(){
             @Override
             public boolean onConsoleMessage(ConsoleMessage consoleMessage) {
+                PageTelemetry.getInstance().recordConsole(consoleMessage);
                 if (consoleMessage.message().contains("NotAllowedError: Write permission denied.") || consoleMessage.message().contains("DOMException")) {  //this error occurs when user copies to clipboard
                     Toast.makeText(context, R.string.error_copy,Toast.LENGTH_LONG).show();
                     return true;
@@ -128,6 +338,11 @@ public class MainActivity extends Activity {
                 return false;
             }
 
+            @Override
+            public void onReceivedTitle(WebView view, String title) {
+                webViewPool.onTitle(view, title);
+            }
+
             @Override
             public boolean onShowFileChooser(WebView webView, ValueCallback<Uri[]> filePathCallback, FileChooserParams fileChooserParams) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -145,66 +360,184 @@ public class MainActivity extends Activity {
                 Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
                 intent.setType("*/*");
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, fileChooserParams.getMode() == FileChooserParams.MODE_OPEN_MULTIPLE);
                 startActivityForResult(intent, FILE_CHOOSER_REQUEST_CODE);
                 return true;
             }
         });  //needed to share link
 
-        chatWebView.setWebViewClient(new WebViewClient() {
+        webView.setWebViewClient(new WebViewClient() {
             //Keep these in sync!
             @Override
             public WebResourceResponse shouldInterceptRequest(final WebView view, WebResourceRequest request) {
-                if (request.getUrl().toString().equals("about:blank")) {
+                long start = System.nanoTime();
+                Uri url = request.getUrl();
+                if (url.toString().equals("about:blank")) {
                     return null;
                 }
-                if (!request.getUrl().toString().startsWith("https://")) {
-                    Log.d(TAG, "[shouldInterceptRequest][NON-HTTPS] Blocked access to " + request.getUrl().toString());
+                if (!"https".equals(url.getScheme())) {
+                    if (BuildConfig.DEBUG) Log.d(TAG, "[shouldInterceptRequest][NON-HTTPS] Blocked access to " + url);
+                    networkMetrics.record(NetworkMetrics.INTERCEPT, null, false, start);
                     return new WebResourceResponse("text/javascript", "UTF-8", null); //Deny URLs that aren't HTTPS
                 }
-                boolean allowed = false;
-                for (String domain : allowedDomains) {
-                    if (request.getUrl().getHost().endsWith(domain)) {
-                        allowed = true;
-                        break;
+                String host = url.getHost();
+                if (!getHostFilter().isAllowed(host)) {
+                    if (BuildConfig.DEBUG) Log.d(TAG, "[shouldInterceptRequest][NOT ON ALLOWLIST] Blocked access to " + url);
+                    networkMetrics.record(NetworkMetrics.INTERCEPT, host, false, start);
+                    return new WebResourceResponse("text/javascript", "UTF-8", null); //Deny URLs not on ALLOWLIST
+                }
+                BlocklistEngine blocklist = blocklistEngine;
+                if (blocklist != null && blocklist.isBlocked(host, url.toString())) {
+                    if (BuildConfig.DEBUG) Log.d(TAG, "[shouldInterceptRequest][ON BLOCKLIST] Blocked access to " + url);
+                    networkMetrics.record(NetworkMetrics.INTERCEPT, host, false, start);
+                    return new WebResourceResponse("text/javascript", "UTF-8", null); //Deny URLs on BLOCKLIST
+                }
+                networkMetrics.record(NetworkMetrics.INTERCEPT, host, true, start);
+                if (request.getMethod().equals("GET") && ASSET_HOSTS.isAllowed(host)) {
+                    AssetCache assets = getAssetCache(getApplicationContext());
+                    AssetCache.Asset asset = assets.isCacheable(url.getPath()) ? assets.get(url.toString(), request.getRequestHeaders()) : null;
+                    if (asset != null) {
+                        Map<String, String> headers = new HashMap<>();
+                        headers.put("Cache-Control", "public, max-age=31536000, immutable");
+                        return new WebResourceResponse(asset.mimeType, null, 200, "OK", headers, asset.data);
                     }
                 }
-                if (!allowed) {
-                    Log.d(TAG, "[shouldInterceptRequest][NOT ON ALLOWLIST] Blocked access to " + request.getUrl().getHost());
-                    Log.d(TAG, "[shouldInterceptRequest][NOT ON ALLOWLIST] Blocked access to " + request.getUrl());
-                    return new WebResourceResponse("text/javascript", "UTF-8", null); //Deny URLs not on ALLOWLIST
+                if (request.getMethod().equals("GET") && IMAGE_HOSTS.isAllowed(host) && ImageCache.isImageRequest(url.getPath(), request.getRequestHeaders())) {
+                    ImageCache.Image image = getImageCache(getApplicationContext()).get(url.toString(), request.getRequestHeaders());
+                    if (image != null) {
+                        Map<String, String> headers = new HashMap<>();
+                        if (image.statusCode == 200) headers.put("Cache-Control", "public, max-age=31536000, immutable");
+                        headers.put("Access-Control-Allow-Origin", "*");
+                        return new WebResourceResponse(image.mimeType, null, image.statusCode, image.reasonPhrase, headers, image.data);
+                    }
+                }
+                HttpStack stack = httpStack;
+                if (stack != null && request.getMethod().equals("GET") && !request.isForMainFrame()) {
+                    HttpStack.Response response = stack.fetch(url.toString(), request.getRequestHeaders());
+                    if (response != null) {
+                        return new WebResourceResponse(response.mimeType, response.encoding, response.statusCode, response.reasonPhrase, response.headers, response.data);
+                    }
                 }
                 return null;
             }
 
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
-                if (request.getUrl().toString().equals("about:blank")) {
+                long start = System.nanoTime();
+                Uri url = request.getUrl();
+                if (url.toString().equals("about:blank")) {
                     return false;
                 }
-                if (!request.getUrl().toString().startsWith("https://")) {
-                    Log.d(TAG, "[shouldOverrideUrlLoading][NON-HTTPS] Blocked access to " + request.getUrl().toString());
+                if (!"https".equals(url.getScheme())) {
+                    if (BuildConfig.DEBUG) Log.d(TAG, "[shouldOverrideUrlLoading][NON-HTTPS] Blocked access to " + url);
+                    networkMetrics.record(NetworkMetrics.OVERRIDE, null, false, start);
                     return true; //Deny URLs that aren't HTTPS
                 }
-                boolean allowed = false;
-                for (String domain : allowedDomains) {
-                    if (request.getUrl().getHost().endsWith(domain)) {
-                        allowed = true;
-                        break;
-                    }
-                }
-                if (!allowed) {
-                    Log.d(TAG, "[shouldOverrideUrlLoading][NOT ON ALLOWLIST] Blocked access to " + request.getUrl().getHost());
+                String host = url.getHost();
+                if (!getHostFilter().isAllowed(host)) {
+                    if (BuildConfig.DEBUG) Log.d(TAG, "[shouldOverrideUrlLoading][NOT ON ALLOWLIST] Blocked access to " + host);
+                    networkMetrics.record(NetworkMetrics.OVERRIDE, host, false, start);
                     return true; //Deny URLs not on ALLOWLIST
                 }
+                networkMetrics.record(NetworkMetrics.OVERRIDE, host, true, start);
                 return false;
             }
+
+            @TargetApi(Build.VERSION_CODES.O)
+            @Override
+            public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+                Log.w(TAG, "[onRenderProcessGone] crashed: " + detail.didCrash());
+                MemoryMonitor.getInstance().recordRendererGone(detail.didCrash());
+                if (view == chatWebView) recreateWebView();
+                else webViewPool.replace(view);  //background chats are loaded again when they are shown
+                return true;
+            }
+
+            @Override
+            public void doUpdateVisitedHistory(WebView view, String url, boolean isReload) {
+                webViewPool.onUrlChanged(view, url);
+                if (view == chatWebView) lastUrl = url;
+                super.doUpdateVisitedHistory(view, url, isReload);
+            }
+
+            @Override
+            public void onPageStarted(WebView view, String url, Bitmap favicon) {
+                //Load timings are taken from the shown chat only, background chats load while it does
+                if (view == chatWebView) {
+                    StartupTrace.mark(StartupTrace.PAGE_STARTED);
+                    networkMetrics.pageStarted();
+                    pageStart = SystemClock.elapsedRealtime();
+                    commitPending = true;
+                }
+                super.onPageStarted(view, url, favicon);
+            }
+
+            @TargetApi(Build.VERSION_CODES.M)
+            @Override
+            public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
+                if (request.isForMainFrame()) countNetworkError(error.getErrorCode());
+            }
+
+            //Only called on API levels below M, main frame only
+            @SuppressWarnings("deprecation")
+            @Override
+            public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
+                countNetworkError(errorCode);
+            }
+
+            @Override
+            public void onPageCommitVisible(WebView view, String url) {
+                webViewPool.onCommitVisible(view);
+                if (view == chatWebView) {
+                    StartupTrace.mark(StartupTrace.FIRST_VISUAL_STATE);
+                    progressIndicator.setVisibility(View.GONE);
+                    if (commitPending) {
+                        BandwidthEstimator.getInstance().addCommit(SystemClock.elapsedRealtime() - pageStart);
+                        commitPending = false;
+                    }
+                }
+                super.onPageCommitVisible(view, url);
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                webViewPool.onCommitVisible(view);
+                view.evaluateJavascript(ArchiveBridge.SCRIPT, null);
+                view.evaluateJavascript(StreamingMetrics.SCRIPT, null);
+                view.evaluateJavascript(PageTelemetry.SCRIPT, null);
+                if (virtualizing) view.evaluateJavascript(MessageVirtualizer.ENABLE_SCRIPT, null);
+                if (pendingScroll > 0 && view == chatWebView) {
+                    view.evaluateJavascript(MemoryMonitor.restoreScrollScript(pendingScroll), null);
+                    pendingScroll = 0;
+                }
+                CookieFlusher.getInstance().flush();
+                if (view == chatWebView) {
+                    StartupTrace.mark(StartupTrace.PAGE_FINISHED);
+                    progressIndicator.setVisibility(View.GONE);
+                    networkMetrics.pageFinished();
+                    if (pageStart > 0) {
+                        BandwidthEstimator.getInstance().addPageLoad(SystemClock.elapsedRealtime() - pageStart);
+                        pageStart = 0;
+                    }
+                    final StartupTrace trace = StartupTrace.finish();
+                    if (trace != null) {
+                        backgroundExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                trace.save(getFilesDir());
+                            }
+                        });
+                    }
+                }
+                super.onPageFinished(view, url);
+            }
         });
 
         //Set more options
-        chatWebSettings = chatWebView.getSettings();
+        chatWebSettings = webView.getSettings();
         //Enable some WebView features
         chatWebSettings.setJavaScriptEnabled(true);
-        chatWebSettings.setCacheMode(WebSettings.LOAD_DEFAULT);
+        chatWebSettings.setCacheMode(cacheMode());
         chatWebSettings.setGeolocationEnabled(false);
         //Disable some WebView features
         chatWebSettings.setAllowContentAccess(false);
@@ -215,15 +548,123 @@ public class MainActivity extends Activity {
         chatWebSettings.setDomStorageEnabled(true);
         chatWebSettings.setSaveFormData(false);
         //Change the User-Agent
-        chatWebSettings.setUserAgentString("Mozilla/5.0 (Linux; Unspecified Device) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/100.0.4896.79 Mobile Safari/537.36");
+        chatWebSettings.setUserAgentString(Settings.getInstance().get().userAgent);
+    }
 
-        //Load HuggingChat
-        chatWebView.loadUrl(urlToLoad);
-        if (GithubStar.shouldShowStarDialog(this)) GithubStar.starDialog(this,"https://github.com/woheller69/huggingassist");
+    //Replaces a WebView whose renderer is gone and restores the last URL and scroll position
+    private void recreateWebView() {
+        chatWebView = webViewPool.replace(chatWebView);
+        chatWebSettings = chatWebView.getSettings();
+        pendingScroll = lastScroll;
+        chatWebView.loadUrl(lastUrl != null ? lastUrl : urlToLoad);
+    }
+
+    private void sampleMemory() {
+        final WebView webView = chatWebView;
+        webView.evaluateJavascript(MemoryMonitor.SAMPLE_SCRIPT, new ValueCallback<String>() {
+            @Override
+            public void onReceiveValue(String value) {
+                long heap = -1;
+                try {
+                    JSONObject sample = new JSONObject(new JSONArray("[" + value + "]").getString(0));  //the result is a JSON encoded string
+                    heap = sample.optLong("heap", -1);
+                    lastScroll = sample.optInt("scroll", 0);
+                } catch (JSONException ignored) {
+                }
+                final long jsHeap = heap;
+                webViewPool.setHeap(webView, jsHeap);
+                backgroundExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        MemoryMonitor.getInstance().sample(jsHeap);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryMonitor.getInstance().recordTrim(level);
+        if (hostFilter != null) hostFilter.clearCache();
+        if (MemoryMonitor.shouldTrimCaches(level)) {
+            if (chatWebView != null) chatWebView.clearCache(false);  //in-memory cache only
+            if (imageCache != null) imageCache.clearMemory();
+            if (webViewPool != null) webViewPool.evictBackground();
+        }
+    }
+
+    private static int cacheMode() {
+        switch (Settings.getInstance().get().cachePolicy) {
+            case Settings.CACHE_DEFAULT:
+                return WebSettings.LOAD_DEFAULT;
+            case Settings.CACHE_PREFER_CACHE:
+                return WebSettings.LOAD_CACHE_ELSE_NETWORK;
+            case Settings.CACHE_NO_CACHE:
+                return WebSettings.LOAD_NO_CACHE;
+        }
+        switch (BandwidthEstimator.getInstance().getQuality()) {
+            case BandwidthEstimator.POOR:
+                return WebSettings.LOAD_CACHE_ELSE_NETWORK;
+            case BandwidthEstimator.OFFLINE:
+                return WebSettings.LOAD_CACHE_ONLY;
+            default:
+                return WebSettings.LOAD_DEFAULT;
+        }
+    }
+
+    private void registerNetworkCallback() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return;  //checkConnectivity() in onResume has to do
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                BandwidthEstimator.getInstance().onNetworkAvailable();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                checkConnectivity();  //a new default network may already be available
+            }
+        };
+        connectivityManager.registerDefaultNetworkCallback(networkCallback);
+    }
+
+    private static void countNetworkError(int errorCode) {
+        if (errorCode == WebViewClient.ERROR_TIMEOUT || errorCode == WebViewClient.ERROR_CONNECT || errorCode == WebViewClient.ERROR_HOST_LOOKUP) {
+            BandwidthEstimator.getInstance().addFailure();
+        }
+    }
+
+    private void checkConnectivity() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        boolean connected;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = connectivityManager.getActiveNetwork();
+            NetworkCapabilities capabilities = network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+            connected = capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+        } else {
+            connected = isConnectedLegacy(connectivityManager);  //no getActiveNetwork() yet
+        }
+        BandwidthEstimator estimator = BandwidthEstimator.getInstance();
+        if (!connected) estimator.onNetworkLost();
+        else if (estimator.getQuality() == BandwidthEstimator.OFFLINE) estimator.onNetworkAvailable();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean isConnectedLegacy(ConnectivityManager connectivityManager) {
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
     }
 
     @Override
     protected void onDestroy() {
+        BandwidthEstimator.getInstance().setListener(null);
+        if (networkCallback != null) {
+            ((ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE)).unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
         super.onDestroy();
     }
 
@@ -245,27 +686,206 @@ public class MainActivity extends Activity {
     }
 
     public void resetChat(View view)  {
+        if (resetPipeline != null && resetPipeline.isRunning()) return;
+        resetButton.setEnabled(false);
+        progressIndicator.setVisibility(View.VISIBLE);
+        webViewPool.clearBackground();
+        resetPipeline = new ResetPipeline(chatWebView, new ResetPipeline.Listener() {
+            @Override
+            public void onResetFinished() {
+                resetButton.setEnabled(true);
+                chatWebView.loadUrl(urlToLoad);
+            }
+        });
+        resetPipeline.start();
+    }
 
-        chatWebView.clearFormData();
-        chatWebView.clearHistory();
-        chatWebView.clearMatches();
-        chatWebView.clearSslPreferences();
-        chatCookieManager.removeSessionCookie();
-        chatCookieManager.removeAllCookie();
-        CookieManager.getInstance().removeAllCookies(null);
-        CookieManager.getInstance().flush();
-        WebStorage.getInstance().deleteAllData();
-        chatWebView.loadUrl(urlToLoad);
 
+    public void showSettings(View view) {
+        SettingsDialog.show(context, new SettingsDialog.OnSaved() {
+            @Override
+            public void onSaved(final Settings.Snapshot previous, final Settings.Snapshot current) {
+                urlToLoad = current.startUrl;
+                webViewPool.setStartUrl(urlToLoad);
+                for (WebView webView : webViewPool.getWebViews()) {
+                    webView.getSettings().setUserAgentString(current.userAgent);
+                    webView.getSettings().setCacheMode(cacheMode());
+                }
+                webViewPool.setBudget(chatPoolBudget(current));
+                if (!current.multiChat) chatsButton.setVisibility(View.GONE);
+                if (!current.longChatMode.equals(previous.longChatMode)) setVirtualizing(Settings.LONG_CHAT_ON.equals(current.longChatMode));
+                if (!current.allowlist.equals(previous.allowlist)) hostFilter = new HostFilter(current.allowlist);
+                backgroundExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!current.useBlocklist) blocklistEngine = null;
+                        else if (blocklistEngine == null || !current.blocklistRules.equals(previous.blocklistRules)) {
+                            blocklistEngine = loadBlocklist(getApplicationContext(), current.blocklistRules);
+                        }
+                        if (!current.appHttpStack) httpStack = null;
+                        else if (httpStack == null) httpStack = createHttpStack(getApplicationContext());
+                    }
+                });
+            }
+        });
+    }
+
+    public void searchArchive(View view) {
+        ArchiveSearchDialog.show(context, getConversationArchive(getApplicationContext()), new ArchiveSearchDialog.OnConversationSelected() {
+            @Override
+            public void onSelected(String conversation) {
+                hideButtons();
+                String url = urlToLoad + "conversation/" + Uri.encode(conversation);
+                if (Settings.getInstance().get().multiChat) switchChat(url);
+                else chatWebView.loadUrl(url);
+            }
+        });
+    }
+
+    public void showChats(View view) {
+        final List<String[]> chats = webViewPool.getChats();
+        String[] items = new String[chats.size() + 1];
+        items[0] = getString(R.string.chats_new);
+        for (int i = 0; i < chats.size(); i++) {
+            String[] chat = chats.get(i);
+            String title = chat[1] != null && !chat[1].isEmpty() ? chat[1] : chat[3];
+            items[i + 1] = (chat[2] != null ? "\u25CF " : "\u25CB ") + title;  //filled circle for live chats
+        }
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(context);
+        alertDialogBuilder.setTitle(R.string.chats);
+        alertDialogBuilder.setItems(items, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                hideButtons();
+                if (which == 0) switchChat(urlToLoad);
+                else switchChat(chats.get(which - 1)[3], chats.get(which - 1)[0]);
+            }
+        });
+        alertDialogBuilder.setNegativeButton(getString(android.R.string.cancel), null);
+        alertDialogBuilder.create().show();
+    }
 
+    private void switchChat(String url) {
+        String key = webViewPool.keyOf(url);
+        switchChat(key != null ? key : WebViewPool.NEW_CHAT, url);
     }
 
+    private void switchChat(String key, String url) {
+        WebView previous = chatWebView;
+        pageStart = 0;  //a load that was running in the previous chat is no longer timed
+        commitPending = false;
+        if (!webViewPool.isLive(key)) progressIndicator.setVisibility(View.VISIBLE);
+        chatWebView = webViewPool.show(key, url);
+        if (chatWebView == previous) {
+            if (!WebViewPool.NEW_CHAT.equals(key)) return;
+            chatWebView.loadUrl(url);  //a new chat from the start page
+        }
+        chatWebSettings = chatWebView.getSettings();
+        lastUrl = chatWebView.getUrl() != null ? chatWebView.getUrl() : url;
+        lastScroll = 0;
+    }
+
+    //Collapses offscreen messages in all chats, pages loaded later get the script in onPageFinished
+    private void setVirtualizing(boolean enabled) {
+        virtualizing = enabled;
+        for (WebView webView : webViewPool.getWebViews()) {
+            webView.evaluateJavascript(enabled ? MessageVirtualizer.ENABLE_SCRIPT : MessageVirtualizer.DISABLE_SCRIPT, null);
+        }
+        FrameMonitor.getInstance().setPhase(enabled ? FrameMonitor.AFTER : FrameMonitor.BEFORE);
+    }
 
-    private static void initURLs() {
-        //Allowed Domains
-        allowedDomains.add("huggingface.co");
-        allowedDomains.add("huggingface.co.");
-        allowedDomains.add("pollinations.ai");
+    private void hideButtons() {
+        resetButton.setVisibility(View.GONE);
+        searchButton.setVisibility(View.GONE);
+        settingsButton.setVisibility(View.GONE);
+        chatsButton.setVisibility(View.GONE);
+    }
+
+    //Without multi-chat mode only the visible chat stays live
+    private static long chatPoolBudget(Settings.Snapshot settings) {
+        return settings.multiChat ? settings.chatPoolMb * 1024L * 1024L : 0;
+    }
+
+    private static synchronized ConversationArchive getConversationArchive(Context appContext) {
+        if (conversationArchive == null) conversationArchive = new ConversationArchive(new File(appContext.getFilesDir(), "archive"));
+        return conversationArchive;
+    }
+
+    private static synchronized AssetCache getAssetCache(Context appContext) {
+        if (assetCache == null) assetCache = new AssetCache(new File(appContext.getCacheDir(), "assets"), 50 * 1024 * 1024, AssetCache.IMMUTABLE_PATH);
+        return assetCache;
+    }
+
+    private static synchronized ImageCache getImageCache(Context appContext) {
+        if (imageCache == null) imageCache = new ImageCache(new File(appContext.getCacheDir(), "images"), 100 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+        return imageCache;
+    }
+
+    //Opt-in, fetches allowed subresources with HttpURLConnection instead of the WebView's own stack
+    private static HttpStack createHttpStack(Context appContext) {
+        HttpStack.configurePool(8, 5 * 60 * 1000);
+        if (HttpResponseCache.getInstalled() == null) {
+            try {
+                HttpResponseCache.install(new File(appContext.getCacheDir(), "http"), 20 * 1024 * 1024);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new HttpStack(new HttpStack.CookieJar() {
+            @Override
+            public String getCookie(String url) {
+                return CookieManager.getInstance().getCookie(url);
+            }
+
+            @Override
+            public void setCookie(String url, String value) {
+                CookieManager.getInstance().setCookie(url, value);
+                CookieFlusher.getInstance().flush();
+            }
+        }, 10000, 30000);
+    }
+
+    //Compiles the bundled list and the user's rules once per app version and rule set, later starts only map the compiled file.
+    //Returns null if there is nothing to block.
+    private static BlocklistEngine loadBlocklist(Context appContext, String rules) {
+        File compiled = new File(appContext.getFilesDir(), "blocklist-" + BuildConfig.VERSION_CODE + "-" + Integer.toHexString(rules.hashCode()) + ".bin");
+        try {
+            if (!compiled.exists()) {
+                File[] files = appContext.getFilesDir().listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().startsWith("blocklist-")) file.delete();
+                    }
+                }
+                InputStream source = new SequenceInputStream(appContext.getResources().openRawResource(R.raw.blocklist),
+                        new ByteArrayInputStream(("\n" + rules).getBytes(StandardCharsets.UTF_8)));
+                BlocklistEngine.compile(source, compiled);
+            }
+            BlocklistEngine engine = BlocklistEngine.open(compiled);
+            return engine.isEmpty() ? null : engine;
+        } catch (IOException e) {
+            e.printStackTrace();
+            compiled.delete();
+            return null;
+        }
+    }
+
+    private static HostFilter getHostFilter() {
+        HostFilter filter = hostFilter;
+        if (filter == null) {
+            try {
+                filter = hostFilterFuture.get();
+            } catch (ExecutionException | InterruptedException e) {
+                filter = initURLs();
+            }
+            hostFilter = filter;
+        }
+        return filter;
+    }
+
+    private static HostFilter initURLs() {
+        //Allowed Domains, see Settings.DEFAULT_ALLOWLIST
+        return new HostFilter(Settings.getInstance().get().allowlist);
     }
 
 
@@ -274,17 +894,91 @@ public class MainActivity extends Activity {
         super.onActivityResult(requestCode, resultCode, intent);
         if (requestCode == FILE_CHOOSER_REQUEST_CODE) {
             if (mUploadMessage == null) return;
+            final ValueCallback<Uri[]> uploadMessage = mUploadMessage;
+            mUploadMessage = null;
             Uri[] result = null;
-            if (resultCode == Activity.RESULT_OK) {
-                if (intent != null) {
-                    String dataString = intent.getDataString();
-                    if (dataString != null) {
-                        result = new Uri[]{Uri.parse(dataString)};
+            if (resultCode == Activity.RESULT_OK && intent != null) {
+                ClipData clipData = intent.getClipData();
+                if (clipData != null && clipData.getItemCount() > 0) {
+                    result = new Uri[clipData.getItemCount()];
+                    for (int i = 0; i < clipData.getItemCount(); i++) {
+                        result[i] = clipData.getItemAt(i).getUri();
                     }
+                } else if (intent.getData() != null) {
+                    result = new Uri[]{intent.getData()};
                 }
             }
-            mUploadMessage.onReceiveValue(result);
-            mUploadMessage = null;
+            if (result != null && Settings.getInstance().get().downscaleUploads) {
+                UploadPreprocessor.getInstance().process(getApplicationContext(), result, new UploadPreprocessor.Callback() {
+                    @Override
+                    public void onResult(Uri[] uris) {
+                        uploadMessage.onReceiveValue(uris);
+                    }
+                });
+            } else {
+                uploadMessage.onReceiveValue(result);
+            }
+        }
+    }
+
+    private static synchronized DownloadEngine getDownloadEngine(Context appContext) {
+        if (downloadEngine == null) downloadEngine = new DownloadEngine(DownloadTargets.create(appContext), new DownloadNotifier(appContext));
+        return downloadEngine;
+    }
+
+    private void downloadImage(String url) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            if (checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+                pendingDownload = url;  //started once the permission is granted
+                requestPermissions(new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, STORAGE_PERMISSION_REQUEST_CODE);
+                return;
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {  //progress is shown in a notification, the download runs either way
+            if (checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+                requestPermissions(new String[]{Manifest.permission.POST_NOTIFICATIONS}, NOTIFICATION_PERMISSION_REQUEST_CODE);
+            }
+        }
+        String filename = URLUtil.guessFileName(url, null, "image/jpeg");
+        if (url.startsWith("blob:")) {  //only the page can read blobs, it hands the data back through DownloadBridge
+            pendingBlobs.add(url);
+            chatWebView.evaluateJavascript("(function(u){fetch(u).then(function(r){return r.blob();}).then(function(b){"
+                    + "var f=new FileReader();f.onloadend=function(){" + DOWNLOAD_BRIDGE + ".onBlob(u,f.result);};f.readAsDataURL(b);});})("
+                    + JSONObject.quote(url) + ");", null);
+            Toast.makeText(this,getString(R.string.downloading),Toast.LENGTH_LONG).show();
+            return;
+        }
+        Map<String, String> headers = null;
+        if (!url.startsWith("data:")) {  //data: URLs are decoded on the download pool
+            headers = new HashMap<>();
+            headers.put("Cookie", CookieManager.getInstance().getCookie(url));
+            headers.put("Accept", "text/html, application/xhtml+xml, *" + "/" + "*");
+            headers.put("Accept-Language", "en-US,en;q=0.7,he;q=0.3");
+            headers.put("Referer", url);
+            headers.put("User-Agent", chatWebSettings.getUserAgentString());
+        }
+        if (getDownloadEngine(getApplicationContext()).enqueue(url, filename, "image/jpeg", headers) != null) {
+            Toast.makeText(this,getString(R.string.downloading),Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this,getString(R.string.download_duplicate, filename),Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == STORAGE_PERMISSION_REQUEST_CODE) {
+            String url = pendingDownload;
+            pendingDownload = null;
+            if (url != null && grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) downloadImage(url);
+        }
+    }
+
+    private class DownloadBridge {
+        @JavascriptInterface
+        public void onBlob(String blobUrl, String dataUrl) {
+            if (!pendingBlobs.remove(blobUrl) || dataUrl == null) return;
+            getDownloadEngine(getApplicationContext()).enqueue(dataUrl, URLUtil.guessFileName(blobUrl, null, "image/jpeg"), "image/jpeg", null);
         }
     }
 
@@ -296,30 +990,14 @@ public class MainActivity extends Activity {
         if (result.getExtra() != null) {
             if (result.getType() == IMAGE_TYPE){
                 url = result.getExtra();
-                Toast.makeText(this,"IMAGE: "+url,Toast.LENGTH_SHORT).show();
+                if (!url.startsWith("data:")) Toast.makeText(this,"IMAGE: "+url,Toast.LENGTH_SHORT).show();
                 if (url != null && !url.isEmpty() &&!url.contains("/avatar.jpg?")) {
-                    Toast.makeText(this,getString(R.string.downloading),Toast.LENGTH_LONG).show();
-                    String filename = URLUtil.guessFileName(url, null, "image/jpeg");
-                    Uri source = Uri.parse(url);
-                    DownloadManager.Request request = new DownloadManager.Request(source);
-                    request.addRequestHeader("Cookie", CookieManager.getInstance().getCookie(url));
-                    request.addRequestHeader("Accept", "text/html, application/xhtml+xml, *" + "/" + "*");
-                    request.addRequestHeader("Accept-Language", "en-US,en;q=0.7,he;q=0.3");
-                    request.addRequestHeader("Referer", url);
-                    request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED); //Notify client once download is completed!
-                    request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, filename);
-                    DownloadManager dm = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-                    assert dm != null;
-                    dm.enqueue(request);
+                    downloadImage(url);
                 }
             } else if (result.getType() == SRC_IMAGE_ANCHOR_TYPE || result.getType() == SRC_ANCHOR_TYPE){
                 if (result.getType() == SRC_IMAGE_ANCHOR_TYPE) {
-                    // Create a background thread that has a Looper
-                    HandlerThread handlerThread = new HandlerThread("HandlerThread");
-                    handlerThread.start();
-                    // Create a handler to execute tasks in the background thread.
-                    Handler backgroundHandler = new Handler(handlerThread.getLooper());
-                    Message msg = backgroundHandler.obtainMessage();
+                    // The WebView fills in the message synchronously, the handler only has to exist
+                    Message msg = hrefHandler.obtainMessage();
                     chatWebView.requestFocusNodeHref(msg);
                     url = (String) msg.getData().get("url");
                     Toast.makeText(this,"SRC_IMAGE: "+url,Toast.LENGTH_SHORT).show();
@@ -329,14 +1007,7 @@ public class MainActivity extends Activity {
                 }
                 String host = Uri.parse(url).getHost();
                 if (host!=null){
-                    boolean allowed = false;
-                    for (String domain : allowedDomains) {
-                        if (host.endsWith(domain)) {
-                            allowed = true;
-                            break;
-                        }
-                    }
-                    if (!allowed) {  //Copy URLs that are not allowed to open to clipboard
+                    if (!getHostFilter().isAllowed(host)) {  //Copy URLs that are not allowed to open to clipboard
                         ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
                         ClipData clip = ClipData.newPlainText(getString(R.string.app_name), url);
                         clipboard.setPrimaryClip(clip);
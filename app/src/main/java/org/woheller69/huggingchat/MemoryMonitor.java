@@ -0,0 +1,114 @@
+package org.woheller69.huggingchat;
+
+import android.content.ComponentCallbacks2;
+import android.os.Debug;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Memory samples over the session plus renderer crash and trim counters.
+ * The renderer runs in an isolated process whose RSS is not readable by the app, so the page's JS heap
+ * (performance.memory) is sampled as the renderer side figure, next to the PSS of the app process.
+ */
+public class MemoryMonitor {
+
+    public static final long INTERVAL = 60 * 1000;
+    private static final int SAMPLES = 180;
+
+    //Returns the JS heap and the scroll position of the main scroll container of the chat
+    public static final String SAMPLE_SCRIPT = "(function(){var e=window.__hugAssistScroller;"
+            + "if(!e||!e.isConnected){e=null;var all=document.querySelectorAll('div');"
+            + "for(var i=0;i<all.length;i++){var d=all[i];if(d.scrollHeight>d.clientHeight+50){var o=getComputedStyle(d).overflowY;"
+            + "if((o==='auto'||o==='scroll')&&(!e||d.scrollHeight>e.scrollHeight))e=d;}}window.__hugAssistScroller=e;}"
+            + "var m=performance.memory;return JSON.stringify({heap:m?m.usedJSHeapSize:-1,scroll:e?e.scrollTop:window.scrollY});})()";
+
+    public static String restoreScrollScript(int scroll) {
+        return "setTimeout(function(){" + SAMPLE_SCRIPT + ";var e=window.__hugAssistScroller;"
+                + "if(e)e.scrollTop=" + scroll + ";else window.scrollTo(0," + scroll + ");},1500);";
+    }
+
+    private static MemoryMonitor instance;
+
+    private final long[] times = new long[SAMPLES];
+    private final long[] appPss = new long[SAMPLES];
+    private final long[] jsHeap = new long[SAMPLES];
+    private int count = 0;
+    private int trims = 0;
+    private int lastTrimLevel = 0;
+    private int recoveries = 0;
+
+    public static synchronized MemoryMonitor getInstance() {
+        if (instance == null) instance = new MemoryMonitor();
+        return instance;
+    }
+
+    //Call off the main thread, Debug.getPss() reads /proc
+    public synchronized void sample(long jsHeapBytes) {
+        int index = count % SAMPLES;
+        times[index] = System.currentTimeMillis();
+        appPss[index] = Debug.getPss();
+        jsHeap[index] = jsHeapBytes;
+        count++;
+    }
+
+    public synchronized void recordTrim(int level) {
+        trims++;
+        lastTrimLevel = level;
+    }
+
+    public synchronized void recordRendererGone(final boolean crashed) {
+        recoveries++;
+        Settings.getInstance().update(new Settings.Change() {
+            @Override
+            public void apply(Settings.Editor editor) {
+                if (crashed) editor.rendererCrashes++;
+                else editor.rendererKills++;
+            }
+        });
+    }
+
+    public static boolean shouldTrimCaches(int level) {
+        return level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+    }
+
+    public synchronized String toText() {
+        Settings.Snapshot settings = Settings.getInstance().get();
+        StringBuilder text = new StringBuilder("Memory\n");
+        text.append("renderer crashes ").append(settings.rendererCrashes)
+                .append(", killed ").append(settings.rendererKills)
+                .append(", recovered this session ").append(recoveries).append('\n');
+        text.append("trims ").append(trims).append(", last level ").append(lastTrimLevel).append('\n');
+        int first = Math.max(0, count - 10);
+        for (int i = count - 1; i >= first; i--) {
+            int index = i % SAMPLES;
+            text.append("app PSS ").append(appPss[index] / 1024).append(" MB, JS heap ")
+                    .append(jsHeap[index] < 0 ? "n/a" : (jsHeap[index] / 1024 / 1024) + " MB").append('\n');
+        }
+        return text.toString();
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        Settings.Snapshot settings = Settings.getInstance().get();
+        JSONObject json = new JSONObject();
+        json.put("rendererCrashes", settings.rendererCrashes);
+        json.put("rendererKills", settings.rendererKills);
+        json.put("recoveries", recoveries);
+        json.put("trims", trims);
+        json.put("lastTrimLevel", lastTrimLevel);
+        JSONArray samples = new JSONArray();
+        for (int i = Math.max(0, count - SAMPLES); i < count; i++) {
+            int index = i % SAMPLES;
+            JSONObject sample = new JSONObject();
+            sample.put("time", times[index]);
+            sample.put("appPssKb", appPss[index]);
+            sample.put("jsHeapBytes", jsHeap[index]);
+            samples.put(sample);
+        }
+        json.put("samples", samples);
+        return json;
+    }
+}
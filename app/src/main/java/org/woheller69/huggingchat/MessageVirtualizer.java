@@ -0,0 +1,38 @@
+package org.woheller69.huggingchat;
+
+/**
+ * Scripts that take offscreen messages of long chats out of rendering and bring them back as they scroll near the viewport.
+ * Nodes stay in the DOM, so the page's framework keeps working on them: a collapsed message keeps its measured height
+ * and gets content-visibility:hidden, which skips layout and paint of its subtree. WebViews without content-visibility
+ * hide the children of the message instead. The last message, which may be streaming, and the focused one stay as they are.
+ */
+public class MessageVirtualizer {
+
+    private static final int MIN_HEIGHT = 100;  //px, smaller messages are not worth it
+
+    public static final String ENABLE_SCRIPT = "(function(){"
+            + "if(window.__hugAssistVirtual)return;"
+            + "var M='[data-message-role]',C='hugAssistCollapsed',cv=window.CSS&&CSS.supports('content-visibility','hidden'),"
+            + "saved=new WeakMap(),seen=new WeakSet(),io=null,root=null,pending=false;"
+            + "var st=document.createElement('style');st.textContent=cv?'.'+C+'{content-visibility:hidden}':'.'+C+'>*{display:none!important}';"
+            + "document.head.appendChild(st);"
+            + "function collapse(e){if(saved.has(e)||e.contains(document.activeElement))return;var h=e.getBoundingClientRect().height;"
+            + "if(h<" + MIN_HEIGHT + ")return;saved.set(e,e.style.height);e.style.height=h+'px';e.classList.add(C);}"
+            + "function expand(e){if(!saved.has(e))return;e.style.height=saved.get(e);saved.delete(e);e.classList.remove(C);}"
+            + "function scroller(e){for(var p=e.parentElement;p;p=p.parentElement){var o=getComputedStyle(p).overflowY;"
+            + "if(o==='auto'||o==='scroll')return p;}return null;}"
+            //The margin has to be on the scroll container, it clips the messages before the viewport does
+            + "function scan(){pending=false;var all=document.querySelectorAll(M);if(!all.length)return;"
+            + "var r=scroller(all[0]);if(!io||r!==root){if(io)io.disconnect();seen=new WeakSet();root=r;"
+            + "io=new IntersectionObserver(function(es){var l=document.querySelectorAll(M);l=l[l.length-1];"
+            + "es.forEach(function(en){if(en.isIntersecting||en.target===l)expand(en.target);else collapse(en.target);});},"
+            + "{root:root,rootMargin:'200% 0px'});}"
+            + "for(var i=0;i<all.length;i++)if(!seen.has(all[i])){seen.add(all[i]);io.observe(all[i]);}}"
+            + "var mo=new MutationObserver(function(){if(!pending){pending=true;requestAnimationFrame(scan);}});"
+            + "mo.observe(document.body,{childList:true,subtree:true});scan();"
+            + "window.__hugAssistVirtual={disable:function(){mo.disconnect();if(io)io.disconnect();"
+            + "document.querySelectorAll('.'+C).forEach(expand);st.remove();delete window.__hugAssistVirtual;}};"
+            + "})();";
+
+    public static final String DISABLE_SCRIPT = "if(window.__hugAssistVirtual)window.__hugAssistVirtual.disable();";
+}
@@ -0,0 +1,197 @@
+package org.woheller69.huggingchat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-app counters for the WebViewClient request filter.
+ * Recording only touches atomics and never builds strings, so it can stay enabled in release builds.
+ */
+public class NetworkMetrics {
+
+    public static final int INTERCEPT = 0;
+    public static final int OVERRIDE = 1;
+    private static final String[] SOURCES = {"shouldInterceptRequest", "shouldOverrideUrlLoading"};
+
+    public static final String NON_HTTPS = "(non-https)";
+    public static final String OTHER = "(other)";
+
+    //Hosts seen after the first MAX_HOSTS are counted together under OTHER
+    static final int MAX_HOSTS = 64;
+
+    //Bucket i counts decisions that took less than 2^i microseconds, the last bucket takes the rest
+    private static final int BUCKETS = 16;
+    private static final int PAGE_LOADS = 20;
+
+    private static NetworkMetrics instance;
+
+    private final ConcurrentHashMap<String, HostStats> hosts = new ConcurrentHashMap<>();
+    private final AtomicLongArray[] latency = {new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS)};
+
+    private final AtomicLong pageAllowed = new AtomicLong();
+    private final AtomicLong pageBlocked = new AtomicLong();
+    private long pageStart = 0;
+    private final long[][] pageLoads = new long[PAGE_LOADS][];
+    private int pageLoadCount = 0;
+
+    public static synchronized NetworkMetrics getInstance() {
+        if (instance == null) instance = new NetworkMetrics();
+        return instance;
+    }
+
+    public void record(int source, String host, boolean allowed, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        latency[source].incrementAndGet(bucket(micros));
+        if (host == null) host = NON_HTTPS;
+        HostStats stats = hosts.get(host);
+        if (stats == null) stats = newStats(hosts.size() < MAX_HOSTS ? host : OTHER);
+        if (allowed) {
+            stats.allowed.incrementAndGet();
+            if (source == INTERCEPT) pageAllowed.incrementAndGet();
+        } else {
+            stats.blocked.incrementAndGet();
+            if (source == INTERCEPT) pageBlocked.incrementAndGet();
+        }
+    }
+
+    //Racing callers may add a few hosts beyond MAX_HOSTS before they see the new size, the map stays bounded anyway
+    private HostStats newStats(String host) {
+        HostStats stats = hosts.get(host);
+        if (stats != null) return stats;
+        HostStats newStats = new HostStats();
+        stats = hosts.putIfAbsent(host, newStats);
+        return stats != null ? stats : newStats;
+    }
+
+    int hostCount() {
+        return hosts.size();
+    }
+
+    private static int bucket(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    public synchronized void pageStarted() {
+        pageStart = System.currentTimeMillis();
+        pageAllowed.set(0);
+        pageBlocked.set(0);
+    }
+
+    public synchronized void pageFinished() {
+        if (pageStart == 0) return;
+        long[] load = {pageStart, System.currentTimeMillis() - pageStart, pageAllowed.get(), pageBlocked.get()};
+        pageLoads[pageLoadCount % PAGE_LOADS] = load;
+        pageLoadCount++;
+        pageStart = 0;
+    }
+
+    //Estimated percentile in microseconds, taken as the upper bound of the matching bucket
+    public long percentile(int source, double p) {
+        AtomicLongArray histogram = latency[source];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += histogram.get(i);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram.get(i);
+            if (count >= rank) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    private List<Map.Entry<String, HostStats>> sortedHosts() {
+        List<Map.Entry<String, HostStats>> entries = new ArrayList<>(hosts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, HostStats>>() {
+            @Override
+            public int compare(Map.Entry<String, HostStats> a, Map.Entry<String, HostStats> b) {
+                return Long.compare(b.getValue().total(), a.getValue().total());
+            }
+        });
+        return entries;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        JSONArray hostArray = new JSONArray();
+        for (Map.Entry<String, HostStats> entry : sortedHosts()) {
+            JSONObject host = new JSONObject();
+            host.put("host", entry.getKey());
+            host.put("allowed", entry.getValue().allowed.get());
+            host.put("blocked", entry.getValue().blocked.get());
+            hostArray.put(host);
+        }
+        json.put("hosts", hostArray);
+
+        JSONObject latencyJson = new JSONObject();
+        for (int source = 0; source < SOURCES.length; source++) {
+            JSONObject histogram = new JSONObject();
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < BUCKETS; i++) buckets.put(latency[source].get(i));
+            histogram.put("bucketsLog2Micros", buckets);
+            histogram.put("p50Micros", percentile(source, 0.5));
+            histogram.put("p95Micros", percentile(source, 0.95));
+            histogram.put("p99Micros", percentile(source, 0.99));
+            latencyJson.put(SOURCES[source], histogram);
+        }
+        json.put("decisionLatency", latencyJson);
+
+        JSONArray loads = new JSONArray();
+        int first = Math.max(0, pageLoadCount - PAGE_LOADS);
+        for (int i = first; i < pageLoadCount; i++) {
+            long[] load = pageLoads[i % PAGE_LOADS];
+            JSONObject loadJson = new JSONObject();
+            loadJson.put("start", load[0]);
+            loadJson.put("durationMs", load[1]);
+            loadJson.put("allowed", load[2]);
+            loadJson.put("blocked", load[3]);
+            loads.put(loadJson);
+        }
+        json.put("pageLoads", loads);
+        return json;
+    }
+
+    public synchronized String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append("Decision latency (us)\n");
+        for (int source = 0; source < SOURCES.length; source++) {
+            text.append(SOURCES[source])
+                    .append(": p50 ").append(percentile(source, 0.5))
+                    .append(", p95 ").append(percentile(source, 0.95))
+                    .append(", p99 ").append(percentile(source, 0.99)).append('\n');
+        }
+        text.append("\nHosts (allowed / blocked)\n");
+        for (Map.Entry<String, HostStats> entry : sortedHosts()) {
+            text.append(entry.getKey()).append(": ")
+                    .append(entry.getValue().allowed.get()).append(" / ")
+                    .append(entry.getValue().blocked.get()).append('\n');
+        }
+        text.append("\nPage loads (ms, allowed / blocked)\n");
+        int first = Math.max(0, pageLoadCount - PAGE_LOADS);
+        for (int i = pageLoadCount - 1; i >= first; i--) {
+            long[] load = pageLoads[i % PAGE_LOADS];
+            text.append(load[1]).append(" ms, ").append(load[2]).append(" / ").append(load[3]).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static final class HostStats {
+        final AtomicLong allowed = new AtomicLong();
+        final AtomicLong blocked = new AtomicLong();
+
+        long total() {
+            return allowed.get() + blocked.get();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.woheller69.huggingchat;
+
+import android.webkit.ConsoleMessage;
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size ring buffer of performance entries and console messages of the chat page.
+ * The injected script observes long tasks, LCP, layout shifts and resource timings and sends them in batches of
+ * lines "type,epochMs,value,payload", the value is the duration in microseconds or the layout shift times 1000.
+ * Writers take a sequence number with a single atomic increment, claim its slot by swapping the slot's sequence
+ * number for -1 and publish it by writing their own sequence number, readers skip slots that are being overwritten.
+ * The fields are atomic arrays as well, so a reader cannot see them out of order with the sequence numbers.
+ * Apart from the payload string nothing is allocated per entry.
+ */
+public class PageTelemetry {
+
+    public static final String NAME = "hugAssistTelemetry";
+
+    public static final int NAVIGATION = 0;
+    public static final int LONG_TASK = 1;
+    public static final int LCP = 2;
+    public static final int LAYOUT_SHIFT = 3;
+    public static final int RESOURCE = 4;
+    public static final int CONSOLE = 5;
+    private static final String[] TYPES = {"navigation", "longtask", "lcp", "layoutShift", "resource", "console"};
+
+    public static final String SCRIPT = "(function(){"
+            + "if(window.__hugAssistTelemetry)return;window.__hugAssistTelemetry=true;"
+            + "var q=[],timer=0,o=performance.timeOrigin||performance.timing.navigationStart;"
+            + "function flush(){timer=0;if(q.length){" + NAME + ".onBatch(q.join('\\n'));q=[];}}"
+            + "function add(t,start,v,p){q.push(t+','+Math.round(o+start)+','+Math.round(v)+','+String(p||'').replace(/[\\r\\n]+/g,' ').slice(0,300));"
+            + "if(!timer)timer=setTimeout(flush,1000);}"
+            + "var s=document.querySelector('script[src*=\"/entry/start.\"],link[href*=\"/entry/start.\"]');"
+            + "add(0,0,0,location.href+' '+(s?(s.src||s.href).split('/').pop():''));"
+            + "function observe(type,f){try{new PerformanceObserver(function(l){l.getEntries().forEach(f);}).observe({type:type,buffered:true});}catch(e){}}"
+            + "observe('longtask',function(e){add(1,e.startTime,e.duration*1000,e.name);});"
+            + "observe('largest-contentful-paint',function(e){add(2,e.startTime,e.startTime*1000,e.element?e.element.tagName:e.url);});"
+            + "observe('layout-shift',function(e){if(!e.hadRecentInput)add(3,e.startTime,e.value*1000,'');});"
+            + "observe('resource',function(e){add(4,e.startTime,e.duration*1000,e.name);});"
+            + "document.addEventListener('visibilitychange',function(){if(document.visibilityState==='hidden'){clearTimeout(timer);flush();}});"
+            + "})();";
+
+    static final int CAPACITY = 4096;  //power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long WRITING = -1;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static PageTelemetry instance;
+
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicIntegerArray types = new AtomicIntegerArray(CAPACITY);
+    private final AtomicLongArray times = new AtomicLongArray(CAPACITY);
+    private final AtomicLongArray values = new AtomicLongArray(CAPACITY);
+    private final AtomicReferenceArray<String> payloads = new AtomicReferenceArray<>(CAPACITY);
+
+    PageTelemetry() {
+        for (int i = 0; i < CAPACITY; i++) published.set(i, EMPTY);
+    }
+
+    public static synchronized PageTelemetry getInstance() {
+        if (instance == null) instance = new PageTelemetry();
+        return instance;
+    }
+
+    public void record(int type, long time, long value, String payload) {
+        long sequence = next.getAndIncrement();
+        int index = (int) (sequence & MASK);
+        while (true) {
+            long current = published.get(index);
+            if (current > sequence) return;  //a writer that wrapped around already stored a newer entry
+            //Readers skip the slot until it is complete, a writer still busy with an older entry is waited for
+            if (current != WRITING && published.compareAndSet(index, current, WRITING)) break;
+            Thread.yield();
+        }
+        types.set(index, type);
+        times.set(index, time);
+        values.set(index, value);
+        payloads.set(index, payload);
+        published.set(index, sequence);
+    }
+
+    //For WebChromeClient.onConsoleMessage, the value is the ordinal of the message level
+    public void recordConsole(ConsoleMessage message) {
+        record(CONSOLE, System.currentTimeMillis(), message.messageLevel().ordinal(), message.message());
+    }
+
+    @JavascriptInterface
+    public void onBatch(String batch) {
+        int start = 0;
+        int length = batch.length();
+        while (start < length) {
+            int end = batch.indexOf('\n', start);
+            if (end < 0) end = length;
+            int first = batch.indexOf(',', start);
+            int second = first < 0 ? -1 : batch.indexOf(',', first + 1);
+            int third = second < 0 ? -1 : batch.indexOf(',', second + 1);
+            if (third >= 0 && third < end) {
+                int type = (int) parseLong(batch, start, first);
+                if (type >= 0 && type < TYPES.length) {
+                    record(type, parseLong(batch, first + 1, second), parseLong(batch, second + 1, third),
+                            third + 1 < end ? batch.substring(third + 1, end) : "");
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    private static long parseLong(String text, int start, int end) {
+        long value = 0;
+        boolean negative = start < end && text.charAt(start) == '-';
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    //Copies the entries that are currently in the buffer, oldest first
+    List<Object[]> snapshot() {
+        long end = next.get();
+        List<Object[]> entries = new ArrayList<>();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            int index = (int) (sequence & MASK);
+            if (published.get(index) != sequence) continue;
+            Object[] entry = {types.get(index), times.get(index), values.get(index), payloads.get(index)};
+            if (published.get(index) == sequence) entries.add(entry);  //not overwritten while copying
+        }
+        return entries;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    public String toText() {
+        List<Object[]> entries = snapshot();
+        long[] longTasks = new long[entries.size()];
+        int longTaskCount = 0;
+        int errors = 0;
+        StringBuilder loads = new StringBuilder();
+        String page = null;
+        long lcp = -1;
+        long shift = 0;
+        for (Object[] entry : entries) {
+            int type = (Integer) entry[0];
+            long value = (Long) entry[2];
+            if (type == NAVIGATION) {
+                if (page != null) appendLoad(loads, page, lcp, shift);
+                page = (String) entry[3];
+                lcp = -1;
+                shift = 0;
+            } else if (type == LONG_TASK) {
+                longTasks[longTaskCount++] = value;
+            } else if (type == LCP) {
+                lcp = value;
+            } else if (type == LAYOUT_SHIFT) {
+                shift += value;
+            } else if (type == CONSOLE && value == ConsoleMessage.MessageLevel.ERROR.ordinal()) {
+                errors++;
+            }
+        }
+        if (page != null) appendLoad(loads, page, lcp, shift);
+        long[] sorted = Arrays.copyOf(longTasks, longTaskCount);
+        Arrays.sort(sorted);
+        StringBuilder text = new StringBuilder("Page telemetry\n");
+        text.append(entries.size()).append(" entries, ").append(errors).append(" console errors\n");
+        text.append("long tasks ").append(longTaskCount)
+                .append(", p50 ").append(percentile(sorted, 0.5) / 1000)
+                .append(" ms, p95 ").append(percentile(sorted, 0.95) / 1000).append(" ms\n");
+        text.append(loads);
+        return text.toString();
+    }
+
+    private static void appendLoad(StringBuilder text, String page, long lcp, long shift) {
+        text.append("LCP ").append(lcp < 0 ? "n/a" : (lcp / 1000) + " ms")
+                .append(", CLS ").append(shift / 1000.0).append(", ").append(page).append('\n');
+    }
+
+    //Complete dump of the buffer
+    public JSONArray toJson() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Object[] entry : snapshot()) {
+            JSONObject entryJson = new JSONObject();
+            entryJson.put("type", TYPES[(Integer) entry[0]]);
+            entryJson.put("time", entry[1]);
+            entryJson.put("value", entry[2]);
+            entryJson.put("payload", entry[3]);
+            json.put(entryJson);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,122 @@
+package org.woheller69.huggingchat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.ValueCallback;
+import android.webkit.WebStorage;
+import android.webkit.WebView;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * Clears all browsing data without blocking the UI thread.
+ * Each step continues from the completion callback of the previous one, only then the chat is reloaded.
+ * The duration of every step is kept for the debug dialog.
+ */
+public class ResetPipeline {
+
+    public interface Listener {
+        void onResetFinished();
+    }
+
+    private static final String TAG = "huggingChat";
+    private static final String[] STEPS = {"webView", "cookies", "webStorage", "flush"};
+    private static final long[] lastDurations = new long[STEPS.length];
+
+    private final WebView webView;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final long[] durations = new long[STEPS.length];
+    private long stepStart;
+    private boolean running = false;
+
+    public ResetPipeline(WebView webView, Listener listener) {
+        this.webView = webView;
+        this.listener = listener;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void start() {
+        if (running) return;
+        running = true;
+        stepStart = SystemClock.elapsedRealtime();
+        webView.clearFormData();
+        webView.clearHistory();
+        webView.clearMatches();
+        webView.clearSslPreferences();
+        done(0);
+
+        CookieManager.getInstance().removeAllCookies(new ValueCallback<Boolean>() {
+            @Override
+            public void onReceiveValue(Boolean removed) {
+                done(1);
+                clearWebStorage();
+            }
+        });
+    }
+
+    private void clearWebStorage() {
+        WebStorage.getInstance().deleteAllData();
+        //getOrigins() is answered after the deletion queued before it has been processed
+        WebStorage.getInstance().getOrigins(new ValueCallback<Map>() {
+            @Override
+            public void onReceiveValue(Map origins) {
+                done(2);
+                CookieFlusher.getInstance().flushNow(new Runnable() {
+                    @Override
+                    public void run() {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                done(3);
+                                finish();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void done(int step) {
+        long now = SystemClock.elapsedRealtime();
+        durations[step] = now - stepStart;
+        stepStart = now;
+    }
+
+    private void finish() {
+        running = false;
+        synchronized (lastDurations) {
+            System.arraycopy(durations, 0, lastDurations, 0, durations.length);
+        }
+        if (BuildConfig.DEBUG) Log.d(TAG, "[resetChat] " + toText());
+        listener.onResetFinished();
+    }
+
+    public static String toText() {
+        StringBuilder text = new StringBuilder("Last reset (ms):");
+        synchronized (lastDurations) {
+            for (int i = 0; i < STEPS.length; i++) {
+                text.append(' ').append(STEPS[i]).append(' ').append(lastDurations[i]);
+            }
+        }
+        return text.append('\n').toString();
+    }
+
+    public static JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        synchronized (lastDurations) {
+            for (int i = 0; i < STEPS.length; i++) json.put(STEPS[i] + "Millis", lastDurations[i]);
+        }
+        return json;
+    }
+}
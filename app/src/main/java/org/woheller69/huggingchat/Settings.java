@@ -0,0 +1,315 @@
+package org.woheller69.huggingchat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * All settings of the app in one small JSON file, read on a background thread right at process start.
+ * Readers get an immutable {@link Snapshot}, changes replace the snapshot at once and are written shortly after,
+ * several changes in a row end up in a single write. The file is replaced atomically through a temp file.
+ * Values from the SharedPreferences of earlier versions are taken over on the first start.
+ */
+public class Settings {
+
+    public static final String CACHE_AUTO = "auto";  //follows the BandwidthEstimator
+    public static final String CACHE_DEFAULT = "default";
+    public static final String CACHE_PREFER_CACHE = "preferCache";
+    public static final String CACHE_NO_CACHE = "noCache";
+    public static final String[] CACHE_POLICIES = {CACHE_AUTO, CACHE_DEFAULT, CACHE_PREFER_CACHE, CACHE_NO_CACHE};
+
+    public static final String LONG_CHAT_OFF = "off";
+    public static final String LONG_CHAT_AUTO = "auto";  //turned on by the FrameMonitor when scrolling drops frames
+    public static final String LONG_CHAT_ON = "on";
+    public static final String[] LONG_CHAT_MODES = {LONG_CHAT_OFF, LONG_CHAT_AUTO, LONG_CHAT_ON};
+
+    public static final String DEFAULT_START_URL = "https://huggingface.co/chat/";
+    public static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Linux; Unspecified Device) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/100.0.4896.79 Mobile Safari/537.36";
+    public static final int DEFAULT_CHAT_POOL_MB = 192;
+    public static final List<String> DEFAULT_ALLOWLIST = HostFilter.DEFAULT_DOMAINS;
+
+    private static final String FILE = "settings.json";
+    private static final long WRITE_DELAY = 500;
+
+    public interface Change {
+        void apply(Editor editor);
+    }
+
+    public static final class Snapshot {
+        public final String startUrl;
+        public final List<String> allowlist;
+        public final String userAgent;
+        public final String cachePolicy;
+        public final boolean useBlocklist;
+        public final String blocklistRules;  //EasyList lines entered by the user
+        public final boolean appHttpStack;
+        public final boolean downscaleUploads;
+        public final boolean multiChat;
+        public final int chatPoolMb;  //memory budget of the live chats in multi-chat mode
+        public final String longChatMode;
+        public final boolean askForStar;
+        public final int lastVersionCode;  //0 before the first start
+        public final int rendererCrashes;
+        public final int rendererKills;
+
+        private Snapshot(Editor editor) {
+            startUrl = editor.startUrl;
+            allowlist = Collections.unmodifiableList(new ArrayList<>(editor.allowlist));
+            userAgent = editor.userAgent;
+            cachePolicy = editor.cachePolicy;
+            useBlocklist = editor.useBlocklist;
+            blocklistRules = editor.blocklistRules;
+            appHttpStack = editor.appHttpStack;
+            downscaleUploads = editor.downscaleUploads;
+            multiChat = editor.multiChat;
+            chatPoolMb = editor.chatPoolMb;
+            longChatMode = editor.longChatMode;
+            askForStar = editor.askForStar;
+            lastVersionCode = editor.lastVersionCode;
+            rendererCrashes = editor.rendererCrashes;
+            rendererKills = editor.rendererKills;
+        }
+    }
+
+    //Mutable copy of a snapshot, only valid inside Change.apply()
+    public static final class Editor {
+        public String startUrl = DEFAULT_START_URL;
+        public List<String> allowlist = new ArrayList<>(DEFAULT_ALLOWLIST);
+        public String userAgent = DEFAULT_USER_AGENT;
+        public String cachePolicy = CACHE_AUTO;
+        public boolean useBlocklist = true;
+        public String blocklistRules = "";
+        public boolean appHttpStack = false;
+        public boolean downscaleUploads = true;
+        public boolean multiChat = false;
+        public int chatPoolMb = DEFAULT_CHAT_POOL_MB;
+        public String longChatMode = LONG_CHAT_OFF;
+        public boolean askForStar = true;
+        public int lastVersionCode = 0;
+        public int rendererCrashes = 0;
+        public int rendererKills = 0;
+
+        private Editor() {
+        }
+
+        private Editor(Snapshot snapshot) {
+            startUrl = snapshot.startUrl;
+            allowlist = new ArrayList<>(snapshot.allowlist);
+            userAgent = snapshot.userAgent;
+            cachePolicy = snapshot.cachePolicy;
+            useBlocklist = snapshot.useBlocklist;
+            blocklistRules = snapshot.blocklistRules;
+            appHttpStack = snapshot.appHttpStack;
+            downscaleUploads = snapshot.downscaleUploads;
+            multiChat = snapshot.multiChat;
+            chatPoolMb = snapshot.chatPoolMb;
+            longChatMode = snapshot.longChatMode;
+            askForStar = snapshot.askForStar;
+            lastVersionCode = snapshot.lastVersionCode;
+            rendererCrashes = snapshot.rendererCrashes;
+            rendererKills = snapshot.rendererKills;
+        }
+    }
+
+    private static Settings instance;
+
+    private final File file;
+    private final Handler handler;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile Snapshot snapshot;
+    private volatile long loadMillis = 0;
+    private volatile long writes = 0;
+    private volatile boolean writePending = false;
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            writePending = false;
+            write(snapshot);
+        }
+    };
+
+    private Settings(final Context appContext) {
+        file = new File(appContext.getFilesDir(), FILE);
+        HandlerThread thread = new HandlerThread("Settings");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                load(appContext);
+            }
+        });
+    }
+
+    //Starts loading, call as early as possible
+    public static synchronized Settings preload(Context context) {
+        if (instance == null) instance = new Settings(context.getApplicationContext());
+        return instance;
+    }
+
+    public static synchronized Settings getInstance() {
+        if (instance == null) throw new IllegalStateException("Settings.preload() has not been called");
+        return instance;
+    }
+
+    //Waits for the file only if it is still being read, which takes a few ms at most
+    public Snapshot get() {
+        Snapshot current = snapshot;
+        if (current != null) return current;
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return snapshot;
+    }
+
+    public Snapshot update(Change change) {
+        Snapshot updated;
+        synchronized (this) {
+            Editor editor = new Editor(get());
+            change.apply(editor);
+            updated = new Snapshot(editor);
+            snapshot = updated;
+        }
+        writePending = true;
+        handler.removeCallbacks(write);
+        handler.postDelayed(write, WRITE_DELAY);
+        return updated;
+    }
+
+    //Writes pending changes right away, e.g. in onPause
+    public void flush() {
+        if (writePending) {
+            handler.removeCallbacks(write);
+            handler.post(write);
+        }
+    }
+
+    private void load(Context appContext) {
+        long start = System.currentTimeMillis();
+        Editor editor = new Editor();
+        boolean migrated = !file.exists();
+        if (migrated) {
+            migrate(editor, PreferenceManager.getDefaultSharedPreferences(appContext));
+        } else {
+            try {
+                read(editor, new JSONObject(readFile(file)));
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();  //keep the defaults
+            }
+        }
+        snapshot = new Snapshot(editor);
+        loadMillis = System.currentTimeMillis() - start;
+        loaded.countDown();
+        //Persisted only after get() has been released, the main thread may be waiting in onCreate
+        if (migrated) write(snapshot);
+    }
+
+    private static void migrate(Editor editor, SharedPreferences prefManager) {
+        editor.askForStar = prefManager.getBoolean("askForStar", true);
+        editor.lastVersionCode = prefManager.getInt("versionCode", 0);
+        editor.useBlocklist = prefManager.getBoolean("useBlocklist", true);
+        editor.appHttpStack = prefManager.getBoolean("appHttpStack", false);
+        editor.downscaleUploads = prefManager.getBoolean("downscaleUploads", true);
+        editor.rendererCrashes = prefManager.getInt("rendererCrashes", 0);
+        editor.rendererKills = prefManager.getInt("rendererKills", 0);
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void read(Editor editor, JSONObject json) throws JSONException {
+        editor.startUrl = json.optString("startUrl", editor.startUrl);
+        JSONArray allowlist = json.optJSONArray("allowlist");
+        if (allowlist != null && allowlist.length() > 0) {
+            editor.allowlist = new ArrayList<>();
+            for (int i = 0; i < allowlist.length(); i++) editor.allowlist.add(allowlist.getString(i));
+        }
+        editor.userAgent = json.optString("userAgent", editor.userAgent);
+        editor.cachePolicy = json.optString("cachePolicy", editor.cachePolicy);
+        editor.useBlocklist = json.optBoolean("useBlocklist", editor.useBlocklist);
+        editor.blocklistRules = json.optString("blocklistRules", editor.blocklistRules);
+        editor.appHttpStack = json.optBoolean("appHttpStack", editor.appHttpStack);
+        editor.downscaleUploads = json.optBoolean("downscaleUploads", editor.downscaleUploads);
+        editor.multiChat = json.optBoolean("multiChat", editor.multiChat);
+        editor.chatPoolMb = json.optInt("chatPoolMb", editor.chatPoolMb);
+        editor.longChatMode = json.optString("longChatMode", editor.longChatMode);
+        editor.askForStar = json.optBoolean("askForStar", editor.askForStar);
+        editor.lastVersionCode = json.optInt("lastVersionCode", editor.lastVersionCode);
+        editor.rendererCrashes = json.optInt("rendererCrashes", editor.rendererCrashes);
+        editor.rendererKills = json.optInt("rendererKills", editor.rendererKills);
+    }
+
+    private static JSONObject toJson(Snapshot snapshot) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("startUrl", snapshot.startUrl);
+        json.put("allowlist", new JSONArray(snapshot.allowlist));
+        json.put("userAgent", snapshot.userAgent);
+        json.put("cachePolicy", snapshot.cachePolicy);
+        json.put("useBlocklist", snapshot.useBlocklist);
+        json.put("blocklistRules", snapshot.blocklistRules);
+        json.put("appHttpStack", snapshot.appHttpStack);
+        json.put("downscaleUploads", snapshot.downscaleUploads);
+        json.put("multiChat", snapshot.multiChat);
+        json.put("chatPoolMb", snapshot.chatPoolMb);
+        json.put("longChatMode", snapshot.longChatMode);
+        json.put("askForStar", snapshot.askForStar);
+        json.put("lastVersionCode", snapshot.lastVersionCode);
+        json.put("rendererCrashes", snapshot.rendererCrashes);
+        json.put("rendererKills", snapshot.rendererKills);
+        return json;
+    }
+
+    //Runs on the settings thread only
+    private void write(Snapshot snapshot) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(toJson(snapshot).toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+        writes++;
+    }
+
+    public String toText() {
+        return "Settings loaded in " + loadMillis + " ms, " + writes + " writes\n";
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("loadMillis", loadMillis);
+        json.put("writes", writes);
+        return json;
+    }
+}
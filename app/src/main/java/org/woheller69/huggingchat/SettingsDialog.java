@@ -0,0 +1,149 @@
+package org.woheller69.huggingchat;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.net.Uri;
+import android.text.InputType;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ScrollView;
+import android.widget.Spinner;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class SettingsDialog {
+
+    public interface OnSaved {
+        void onSaved(Settings.Snapshot previous, Settings.Snapshot current);
+    }
+
+    static void show(final Context context, final OnSaved listener) {
+        final Settings.Snapshot snapshot = Settings.getInstance().get();
+
+        LinearLayout layout = new LinearLayout(context);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        int padding = (int) (16 * context.getResources().getDisplayMetrics().density);
+        layout.setPadding(padding, padding, padding, 0);
+
+        final EditText startUrlView = addText(context, layout, R.string.settings_start_url, snapshot.startUrl, false);
+        StringBuilder allowlist = new StringBuilder();
+        for (String domain : snapshot.allowlist) allowlist.append(domain).append('\n');
+        final EditText allowlistView = addText(context, layout, R.string.settings_allowlist, allowlist.toString().trim(), true);
+        final EditText userAgentView = addText(context, layout, R.string.settings_user_agent, snapshot.userAgent, true);
+
+        TextView cacheLabel = new TextView(context);
+        cacheLabel.setText(R.string.settings_cache_policy);
+        layout.addView(cacheLabel);
+        final Spinner cacheView = new Spinner(context);
+        cacheView.setAdapter(new ArrayAdapter<>(context, android.R.layout.simple_spinner_dropdown_item, context.getResources().getStringArray(R.array.settings_cache_policies)));
+        cacheView.setSelection(Math.max(0, Arrays.asList(Settings.CACHE_POLICIES).indexOf(snapshot.cachePolicy)));
+        layout.addView(cacheView);
+
+        final CheckBox blocklistView = addCheckBox(context, layout, R.string.settings_blocklist, snapshot.useBlocklist);
+        final EditText blocklistRulesView = addText(context, layout, R.string.settings_blocklist_rules, snapshot.blocklistRules, true);
+        final CheckBox httpStackView = addCheckBox(context, layout, R.string.settings_http_stack, snapshot.appHttpStack);
+        final CheckBox downscaleView = addCheckBox(context, layout, R.string.settings_downscale, snapshot.downscaleUploads);
+        final CheckBox multiChatView = addCheckBox(context, layout, R.string.settings_multi_chat, snapshot.multiChat);
+        final EditText chatPoolView = addText(context, layout, R.string.settings_chat_pool, String.valueOf(snapshot.chatPoolMb), false);
+        chatPoolView.setInputType(InputType.TYPE_CLASS_NUMBER);
+
+        TextView longChatLabel = new TextView(context);
+        longChatLabel.setText(R.string.settings_long_chat);
+        layout.addView(longChatLabel);
+        final Spinner longChatView = new Spinner(context);
+        longChatView.setAdapter(new ArrayAdapter<>(context, android.R.layout.simple_spinner_dropdown_item, context.getResources().getStringArray(R.array.settings_long_chat_modes)));
+        longChatView.setSelection(Math.max(0, Arrays.asList(Settings.LONG_CHAT_MODES).indexOf(snapshot.longChatMode)));
+        layout.addView(longChatView);
+
+        ScrollView scrollView = new ScrollView(context);
+        scrollView.addView(layout);
+
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(context);
+        alertDialogBuilder.setTitle(R.string.settings);
+        alertDialogBuilder.setView(scrollView);
+        alertDialogBuilder.setPositiveButton(context.getString(R.string.dialog_OK_button), null);
+        alertDialogBuilder.setNegativeButton(context.getString(android.R.string.cancel), null);
+        final AlertDialog dialog = alertDialogBuilder.create();
+        dialog.show();
+        //Set after show() so that an invalid start URL keeps the dialog open instead of dismissing it
+        dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                final List<String> domains = new ArrayList<>();
+                for (String domain : allowlistView.getText().toString().split("[\\s,]+")) {
+                    if (!domain.isEmpty()) domains.add(domain.toLowerCase(Locale.ROOT));
+                }
+                if (domains.isEmpty()) domains.addAll(Settings.DEFAULT_ALLOWLIST);
+                //The start URL and the allowlist are only saved together, if the allowlist lets the app open the start URL
+                final String newStartUrl = startUrlView.getText().toString().trim();
+                Uri uri = Uri.parse(newStartUrl);
+                if (!"https".equals(uri.getScheme()) || uri.getHost() == null || !new HostFilter(domains).isAllowed(uri.getHost())) {
+                    startUrlView.setError(context.getString(R.string.settings_invalid_url));
+                    Toast.makeText(context, R.string.settings_invalid_url, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                final String userAgent = userAgentView.getText().toString().trim();
+                final String cachePolicy = Settings.CACHE_POLICIES[cacheView.getSelectedItemPosition()];
+                final boolean useBlocklist = blocklistView.isChecked();
+                final String blocklistRules = blocklistRulesView.getText().toString().trim();
+                final boolean appHttpStack = httpStackView.isChecked();
+                final boolean downscaleUploads = downscaleView.isChecked();
+                final boolean multiChat = multiChatView.isChecked();
+                int poolMb;
+                try {
+                    poolMb = Math.max(0, Integer.parseInt(chatPoolView.getText().toString().trim()));
+                } catch (NumberFormatException e) {
+                    poolMb = snapshot.chatPoolMb;
+                }
+                final int chatPoolMb = poolMb;
+                final String longChatMode = Settings.LONG_CHAT_MODES[longChatView.getSelectedItemPosition()];
+                Settings.Snapshot current = Settings.getInstance().update(new Settings.Change() {
+                    @Override
+                    public void apply(Settings.Editor editor) {
+                        editor.startUrl = newStartUrl;
+                        editor.allowlist = domains;
+                        editor.userAgent = userAgent.isEmpty() ? Settings.DEFAULT_USER_AGENT : userAgent;
+                        editor.cachePolicy = cachePolicy;
+                        editor.useBlocklist = useBlocklist;
+                        editor.blocklistRules = blocklistRules;
+                        editor.appHttpStack = appHttpStack;
+                        editor.downscaleUploads = downscaleUploads;
+                        editor.multiChat = multiChat;
+                        editor.chatPoolMb = chatPoolMb;
+                        editor.longChatMode = longChatMode;
+                    }
+                });
+                dialog.dismiss();
+                listener.onSaved(snapshot, current);
+            }
+        });
+    }
+
+    private static EditText addText(Context context, LinearLayout layout, int label, String value, boolean multiLine) {
+        TextView labelView = new TextView(context);
+        labelView.setText(label);
+        layout.addView(labelView);
+        EditText editText = new EditText(context);
+        editText.setInputType(multiLine ? InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE | InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS
+                : InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
+        editText.setText(value);
+        layout.addView(editText);
+        return editText;
+    }
+
+    private static CheckBox addCheckBox(Context context, LinearLayout layout, int label, boolean checked) {
+        CheckBox checkBox = new CheckBox(context);
+        checkBox.setText(label);
+        checkBox.setChecked(checked);
+        layout.addView(checkBox);
+        return checkBox;
+    }
+}
@@ -0,0 +1,132 @@
+package org.woheller69.huggingchat;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timestamps of one cold start, in ms since process start (elapsedRealtime).
+ * Each trace is appended to a small file together with the version code, so releases can be compared.
+ */
+public class StartupTrace {
+
+    public static final int ACTIVITY_CREATED = 0;
+    public static final int WEBVIEW_READY = 1;
+    public static final int PAGE_STARTED = 2;
+    public static final int FIRST_VISUAL_STATE = 3;
+    public static final int PAGE_FINISHED = 4;
+    private static final String[] MARKS = {"activityCreated", "webViewReady", "pageStarted", "firstVisualState", "pageFinished"};
+
+    private static final String FILE = "startup_traces";
+    private static final int MAX_TRACES = 30;
+
+    private static final long classLoaded = SystemClock.elapsedRealtime();
+    private static StartupTrace current = new StartupTrace();
+
+    private final long processStart;
+    private final long[] marks = new long[MARKS.length];
+    private boolean finished = false;
+
+    private StartupTrace() {
+        processStart = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? Process.getStartElapsedRealtime() : classLoaded;
+    }
+
+    //Only the first occurrence of each mark is recorded, later page loads do not belong to the startup
+    public static synchronized void mark(int mark) {
+        if (current.finished || current.marks[mark] != 0) return;
+        current.marks[mark] = Math.max(1, SystemClock.elapsedRealtime() - current.processStart);
+    }
+
+    //Closes the trace and returns it once, when the first page has finished loading
+    public static synchronized StartupTrace finish() {
+        if (current.finished || current.marks[PAGE_FINISHED] == 0) return null;
+        current.finished = true;
+        return current;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("versionCode", BuildConfig.VERSION_CODE);
+        json.put("timestamp", System.currentTimeMillis());
+        for (int i = 0; i < MARKS.length; i++) {
+            if (marks[i] != 0) json.put(MARKS[i], marks[i]);
+        }
+        return json;
+    }
+
+    //Call off the main thread
+    public void save(File dir) {
+        File file = new File(dir, FILE);
+        List<String> lines = readLines(file);
+        try {
+            lines.add(toJson().toString());
+        } catch (JSONException e) {
+            return;
+        }
+        int first = Math.max(0, lines.size() - MAX_TRACES);
+        try (Writer writer = new FileWriter(file, false)) {
+            for (int i = first; i < lines.size(); i++) {
+                writer.write(lines.get(i));
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static JSONArray load(File dir) {
+        JSONArray traces = new JSONArray();
+        for (String line : readLines(new File(dir, FILE))) {
+            try {
+                traces.put(new JSONObject(line));
+            } catch (JSONException ignored) {
+            }
+        }
+        return traces;
+    }
+
+    public static String toText(File dir) {
+        StringBuilder text = new StringBuilder("Startup traces (ms since process start)\nversion:");
+        for (String mark : MARKS) text.append(' ').append(mark);
+        text.append('\n');
+        for (String line : readLines(new File(dir, FILE))) {
+            try {
+                JSONObject trace = new JSONObject(line);
+                text.append(trace.optInt("versionCode", 0)).append(':');
+                for (String mark : MARKS) {
+                    text.append(' ').append(trace.optLong(mark, 0));
+                }
+                text.append('\n');
+            } catch (JSONException ignored) {
+            }
+        }
+        return text.toString();
+    }
+
+    private static List<String> readLines(File file) {
+        List<String> lines = new ArrayList<>();
+        if (!file.exists()) return lines;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return lines;
+    }
+}
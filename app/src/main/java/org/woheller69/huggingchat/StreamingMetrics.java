@@ -0,0 +1,193 @@
+package org.woheller69.huggingchat;
+
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time to first token, inter-token latency and throughput of streamed answers.
+ * The injected script timestamps every mutation of the answer element that follows a sent message and hands
+ * them over in batches, at most one bridge call per animation frame. Each DOM update counts as one token.
+ * Responses whose page went away before the script reported them done, e.g. after a navigation or a renderer
+ * crash, are dropped once no batch arrived for a while.
+ */
+public class StreamingMetrics {
+
+    public static final String NAME = "hugAssistStream";
+
+    public static final String SCRIPT = "(function(){"
+            + "if(window.__hugAssistStream)return;window.__hugAssistStream=true;"
+            + "var U='[data-message-role=\"user\"]',A='[data-message-role=\"assistant\"]',cur=null,sent=-1,times=[],pending=false,timer=0;"
+            + "function model(){var a=document.querySelector('a[href*=\"/models/\"]'),m=a&&a.getAttribute('href').match(/\\/models\\/([^?#]+)/);"
+            + "return m?decodeURIComponent(m[1]):'unknown';}"
+            + "function flush(done){pending=false;if(!cur)return;"
+            + NAME + ".onBatch(JSON.stringify({id:cur.id,model:cur.model,sent:cur.sent,times:times,len:cur.el.textContent.length,done:done}));"
+            + "times=[];if(done)cur=null;}"
+            + "new MutationObserver(function(ms){var now=performance.now(),e=null;"
+            + "for(var i=0;i<ms.length;i++){var t=ms[i].target;"
+            + "ms[i].addedNodes.forEach(function(n){if(n.nodeType===1&&(n.matches(U)||n.querySelector(U))){if(cur)flush(true);sent=now;}});"
+            + "t=t.nodeType===1?t:t.parentElement;t=t&&t.closest(A);if(t)e=t;}"
+            + "if(!e)return;"
+            + "if(!cur||cur.el!==e){if(cur)flush(true);if(sent<0)return;"
+            + "cur={el:e,id:e.getAttribute('data-message-id')||String(now),model:model(),sent:sent};sent=-1;}"
+            + "times.push(now);"
+            + "if(!pending){pending=true;requestAnimationFrame(function(){flush(false);});}"
+            + "clearTimeout(timer);timer=setTimeout(function(){flush(true);},2000);"
+            + "}).observe(document.body,{childList:true,subtree:true,characterData:true});"
+            + "})();";
+
+    private static final int HISTORY = 50;
+    private static final long STALE = 10000;  //ms without a batch, the script itself reports a response done after 2 s
+
+    private static StreamingMetrics instance;
+
+    private static final class Response {
+        final String model;
+        final double sent;
+        double first = -1;
+        double last = -1;
+        int chars = 0;
+        double[] intervals = new double[64];
+        int count = 0;  //number of updates, intervals holds count - 1 values
+        long updated;   //wall clock of the last batch
+
+        Response(String model, double sent) {
+            this.model = model;
+            this.sent = sent;
+        }
+
+        void add(double time) {
+            if (first < 0) {
+                first = time;
+            } else {
+                if (count - 1 == intervals.length) intervals = Arrays.copyOf(intervals, intervals.length * 2);
+                intervals[count - 1] = time - last;
+            }
+            last = time;
+            count++;
+        }
+    }
+
+    private static final class Result {
+        final long timestamp = System.currentTimeMillis();
+        double ttft;
+        double p50;
+        double p90;
+        double p99;
+        double tokensPerSecond;
+        double charsPerSecond;
+        int tokens;
+    }
+
+    private final LinkedHashMap<String, Response> active = new LinkedHashMap<>();
+    private final LinkedHashMap<String, ArrayDeque<Result>> history = new LinkedHashMap<>();
+
+    public static synchronized StreamingMetrics getInstance() {
+        if (instance == null) instance = new StreamingMetrics();
+        return instance;
+    }
+
+    @JavascriptInterface
+    public void onBatch(String json) {
+        try {
+            JSONObject batch = new JSONObject(json);
+            String id = batch.getString("id");
+            JSONArray times = batch.getJSONArray("times");
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                expire(now);
+                Response response = active.get(id);
+                if (response == null) {
+                    response = new Response(batch.optString("model", "unknown"), batch.getDouble("sent"));
+                    active.put(id, response);
+                }
+                response.updated = now;
+                for (int i = 0; i < times.length(); i++) response.add(times.getDouble(i));
+                response.chars = batch.optInt("len", response.chars);
+                if (batch.optBoolean("done", false)) {
+                    active.remove(id);
+                    finish(response);
+                }
+            }
+        } catch (JSONException ignored) {
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Response> iterator = active.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().updated > STALE) iterator.remove();
+        }
+    }
+
+    private void finish(Response response) {
+        if (response.count < 2 || response.sent < 0) return;
+        Result result = new Result();
+        result.ttft = response.first - response.sent;
+        double[] intervals = Arrays.copyOf(response.intervals, response.count - 1);
+        Arrays.sort(intervals);
+        result.p50 = percentile(intervals, 0.5);
+        result.p90 = percentile(intervals, 0.9);
+        result.p99 = percentile(intervals, 0.99);
+        double seconds = (response.last - response.first) / 1000;
+        result.tokens = response.count;
+        result.tokensPerSecond = seconds > 0 ? (response.count - 1) / seconds : 0;
+        result.charsPerSecond = seconds > 0 ? response.chars / seconds : 0;
+        ArrayDeque<Result> results = history.get(response.model);
+        if (results == null) {
+            results = new ArrayDeque<>();
+            history.put(response.model, results);
+        }
+        results.addLast(result);
+        if (results.size() > HISTORY) results.removeFirst();
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    public synchronized String toText() {
+        StringBuilder text = new StringBuilder("Streaming (ms, tokens/s)\n");
+        for (Map.Entry<String, ArrayDeque<Result>> entry : history.entrySet()) {
+            text.append(entry.getKey()).append('\n');
+            for (Result result : entry.getValue()) {
+                text.append("ttft ").append(Math.round(result.ttft))
+                        .append(", itl p50 ").append(Math.round(result.p50))
+                        .append(" p90 ").append(Math.round(result.p90))
+                        .append(" p99 ").append(Math.round(result.p99))
+                        .append(", ").append(Math.round(result.tokensPerSecond)).append(" tok/s\n");
+            }
+        }
+        return text.toString();
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, ArrayDeque<Result>> entry : history.entrySet()) {
+            JSONArray results = new JSONArray();
+            for (Result result : entry.getValue()) {
+                JSONObject resultJson = new JSONObject();
+                resultJson.put("timestamp", result.timestamp);
+                resultJson.put("ttftMs", result.ttft);
+                resultJson.put("interTokenP50Ms", result.p50);
+                resultJson.put("interTokenP90Ms", result.p90);
+                resultJson.put("interTokenP99Ms", result.p99);
+                resultJson.put("tokens", result.tokens);
+                resultJson.put("tokensPerSecond", result.tokensPerSecond);
+                resultJson.put("charsPerSecond", result.charsPerSecond);
+                results.put(resultJson);
+            }
+            json.put(entry.getKey(), results);
+        }
+        return json;
+    }
+}
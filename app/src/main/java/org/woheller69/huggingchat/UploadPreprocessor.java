@@ -0,0 +1,150 @@
+package org.woheller69.huggingchat;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Replaces picked images by downscaled, re-encoded copies before they are handed to the page.
+ * Images are processed one after the other on a single background thread and decoded with sampling,
+ * so only one image of at most MAX_DIMENSION x MAX_DIMENSION (plus its rotated copy) is in memory at a time.
+ * PNG and WebP keep their format and transparency, JPEG and HEIC (which Android cannot encode) become JPEG.
+ * The thread is shared by all activities and lives as long as the process.
+ */
+public class UploadPreprocessor {
+
+    public interface Callback {
+        void onResult(Uri[] uris);
+    }
+
+    private static final int MAX_DIMENSION = 2048;
+    private static final int QUALITY = 85;
+    private static final String DIR = "uploads";
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    private static UploadPreprocessor instance;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int counter = 0;
+
+    public static synchronized UploadPreprocessor getInstance() {
+        if (instance == null) instance = new UploadPreprocessor();
+        return instance;
+    }
+
+    private UploadPreprocessor() {
+    }
+
+    public void process(final Context context, final Uri[] uris, final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File dir = new File(context.getCacheDir(), DIR);
+                deleteOld(dir);
+                final Uri[] result = new Uri[uris.length];
+                for (int i = 0; i < uris.length; i++) {
+                    Uri scaled = null;
+                    try {
+                        scaled = downscale(context.getContentResolver(), uris[i], dir);
+                    } catch (IOException | OutOfMemoryError e) {
+                        e.printStackTrace();
+                    }
+                    result[i] = scaled != null ? scaled : uris[i];
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        });
+    }
+
+    //Returns null if the original should be uploaded as it is
+    private Uri downscale(ContentResolver resolver, Uri uri, File dir) throws IOException {
+        String mimeType = resolver.getType(uri);
+        boolean png = "image/png".equals(mimeType);
+        boolean webp = "image/webp".equals(mimeType);
+        if (!png && !webp && !"image/jpeg".equals(mimeType) && !"image/heic".equals(mimeType)) return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        int longest = Math.max(options.outWidth, options.outHeight);
+        if (longest <= MAX_DIMENSION) return null;
+
+        int rotation = 0;
+        if (!png) {
+            //Re-encoding drops EXIF, so the orientation has to be applied to the pixels
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return null;
+            try (InputStream in = resolver.openInputStream(uri)) {
+                if (in == null) return null;
+                int orientation = new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+                if (orientation == ExifInterface.ORIENTATION_ROTATE_90) rotation = 90;
+                else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) rotation = 180;
+                else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) rotation = 270;
+                else if (orientation != ExifInterface.ORIENTATION_NORMAL && orientation != ExifInterface.ORIENTATION_UNDEFINED) return null;  //mirrored
+            }
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (longest / options.inSampleSize > MAX_DIMENSION) options.inSampleSize *= 2;
+        Bitmap bitmap;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null) return null;
+        if (rotation != 0) {
+            Matrix matrix = new Matrix();
+            matrix.postRotate(rotation);
+            Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            if (rotated != bitmap) bitmap.recycle();
+            bitmap = rotated;
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) return null;
+        File file = new File(dir, "upload-" + System.currentTimeMillis() + "-" + (++counter) + (png ? ".png" : webp ? ".webp" : ".jpg"));
+        try (OutputStream out = new FileOutputStream(file)) {
+            bitmap.compress(png ? Bitmap.CompressFormat.PNG : webp ? webpFormat() : Bitmap.CompressFormat.JPEG, QUALITY, out);
+        } finally {
+            bitmap.recycle();
+        }
+        return Uri.fromFile(file);
+    }
+
+    //WEBP is lossy below quality 100 as well, but deprecated since WEBP_LOSSY was added
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    //The page may still hold on to recent copies until the message is sent
+    private static void deleteOld(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long limit = System.currentTimeMillis() - MAX_AGE;
+        for (File file : files) {
+            if (file.lastModified() < limit) file.delete();
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package org.woheller69.huggingchat;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps recently used chats in live WebViews so switching between them does not reload the page.
+ * Chats are keyed by their conversation id, the chat on the start page has the key {@link #NEW_CHAT}. Other pages,
+ * e.g. login or settings, stay under the key of the chat they were opened from. If a chat navigates to a conversation
+ * that is open in another WebView, the one that is not shown gets a numbered key, so neither view and its draft is lost.
+ * Background WebViews are hidden and paused, which also makes the page hidden, so it stops rendering and
+ * the browser throttles its timers. Least recently used chats are destroyed when the estimated memory
+ * of all live WebViews exceeds the budget, they are loaded again from their last URL when they are shown.
+ * The memory of a WebView is estimated from the JS heap of its page plus a fixed amount for the renderer
+ * side of the view, as all WebViews share one renderer process whose memory cannot be read per view.
+ * Main thread only.
+ */
+public class WebViewPool {
+
+    public static final String NEW_CHAT = "new";
+    private static final long VIEW_OVERHEAD = 20 * 1024 * 1024;  //tiles, DOM and renderer structures not in the JS heap
+    private static final long DEFAULT_HEAP = 20 * 1024 * 1024;   //until the first sample
+    private static final int MAX_RESTORABLE = 20;
+    private static final int BUCKETS = 16;
+
+    public interface Factory {
+        WebView create();
+
+        void release(WebView webView);
+    }
+
+    private static final class Entry {
+        String key;
+        final WebView webView;
+        String url;
+        String title;
+        long heapBytes = -1;
+        long lastUsed;
+
+        Entry(String key, WebView webView, String url) {
+            this.key = key;
+            this.webView = webView;
+            this.url = url;
+        }
+
+        long estimatedBytes() {
+            return VIEW_OVERHEAD + (heapBytes >= 0 ? heapBytes : DEFAULT_HEAP);
+        }
+    }
+
+    private final ViewGroup container;
+    private final ViewGroup.LayoutParams params;
+    private final Factory factory;
+    private String startUrl;
+    private long budgetBytes;
+    private final LinkedHashMap<String, Entry> live = new LinkedHashMap<>(8, 0.75f, true);
+    private final LinkedHashMap<String, String[]> restorable = new LinkedHashMap<>(8, 0.75f, true);  //key -> url, title
+    private Entry active;
+    private int duplicates = 0;
+
+    private long switchStart = 0;
+    private WebView pendingVisible = null;
+    private int hits = 0;
+    private int misses = 0;
+    private int restores = 0;
+    private int evictions = 0;
+    //Bucket i counts switches that took less than 2^i milliseconds, the last bucket takes the rest
+    private final long[] hitLatency = new long[BUCKETS];
+    private final long[] missLatency = new long[BUCKETS];
+
+    //Takes over the WebView from the layout as the first chat
+    public WebViewPool(WebView first, String url, Factory factory, long budgetBytes) {
+        this.container = (ViewGroup) first.getParent();
+        this.params = first.getLayoutParams();
+        this.factory = factory;
+        this.startUrl = url;
+        this.budgetBytes = budgetBytes;
+        String key = keyOf(url);
+        active = new Entry(key != null ? key : NEW_CHAT, first, url);
+        active.lastUsed = SystemClock.elapsedRealtime();
+        live.put(active.key, active);
+    }
+
+    //Conversation id of a chat URL, e.g. https://huggingface.co/chat/conversation/<id>, NEW_CHAT for the start page,
+    //null for pages that are no chat
+    public String keyOf(String url) {
+        if (url == null) return null;
+        int start = url.indexOf("/conversation/");
+        if (start >= 0) {
+            start += "/conversation/".length();
+            int end = start;
+            while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) end++;
+            if (end > start) return url.substring(start, end);
+        }
+        return page(url).equals(page(startUrl)) ? NEW_CHAT : null;
+    }
+
+    //URL without query, fragment and trailing slash
+    private static String page(String url) {
+        int end = url.length();
+        for (int i = 0; i < url.length(); i++) {
+            if (url.charAt(i) == '?' || url.charAt(i) == '#') {
+                end = i;
+                break;
+            }
+        }
+        while (end > 0 && url.charAt(end - 1) == '/') end--;
+        return url.substring(0, end);
+    }
+
+    public void setStartUrl(String startUrl) {
+        this.startUrl = startUrl;
+    }
+
+    public List<WebView> getWebViews() {
+        List<WebView> webViews = new ArrayList<>();
+        for (Entry entry : live.values()) webViews.add(entry.webView);
+        return webViews;
+    }
+
+    public boolean isLive(String key) {
+        return live.containsKey(key);
+    }
+
+    public void setBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        trim();
+    }
+
+    //Shows the chat of the URL, from a live WebView if there is one, otherwise in a new one loading the URL
+    public WebView show(String url) {
+        String key = keyOf(url);
+        return show(key != null ? key : NEW_CHAT, url);
+    }
+
+    //Shows the chat with the key, for chats from getChats() whose key does not follow from the URL
+    public WebView show(String key, String url) {
+        if (key.equals(active.key)) return active.webView;
+        switchStart = SystemClock.elapsedRealtime();
+        Entry entry = live.get(key);
+        Entry previous = active;
+        if (entry != null) {
+            hits++;
+            activate(entry, previous);
+            waitForVisible(entry.webView, true);
+        } else {
+            misses++;
+            String[] record = restorable.remove(key);
+            if (record != null) {
+                restores++;
+                url = record[0];  //the last URL the chat had, not necessarily the one asked for
+            }
+            WebView webView = factory.create();
+            container.addView(webView, 0, params);
+            entry = new Entry(key, webView, url);
+            if (record != null) entry.title = record[1];
+            live.put(key, entry);
+            activate(entry, previous);
+            pendingVisible = webView;  //completed by onCommitVisible()
+            webView.loadUrl(url);
+        }
+        trim();
+        return entry.webView;
+    }
+
+    private void activate(Entry entry, Entry previous) {
+        entry.webView.setVisibility(View.VISIBLE);
+        entry.webView.onResume();
+        entry.webView.requestFocus();
+        previous.webView.onPause();
+        previous.webView.setVisibility(View.GONE);
+        previous.lastUsed = SystemClock.elapsedRealtime();
+        entry.lastUsed = previous.lastUsed;
+        active = entry;
+    }
+
+    private void waitForVisible(final WebView webView, final boolean hit) {
+        pendingVisible = webView;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            webView.postVisualStateCallback(0, new WebView.VisualStateCallback() {
+                @Override
+                public void onComplete(long requestId) {
+                    visible(webView, hit);
+                }
+            });
+        } else {
+            webView.post(new Runnable() {
+                @Override
+                public void run() {
+                    visible(webView, hit);
+                }
+            });
+        }
+    }
+
+    //Call from WebViewClient.onPageCommitVisible, and from onPageFinished for API levels without it
+    public void onCommitVisible(WebView webView) {
+        visible(webView, false);
+    }
+
+    private void visible(WebView webView, boolean hit) {
+        if (webView != pendingVisible) return;
+        pendingVisible = null;
+        long[] histogram = hit ? hitLatency : missLatency;
+        histogram[bucket(SystemClock.elapsedRealtime() - switchStart)]++;
+    }
+
+    //The page navigated within its WebView, e.g. to a new or another conversation
+    public void onUrlChanged(WebView webView, String url) {
+        Entry entry = find(webView);
+        if (entry == null) return;
+        String key = keyOf(url);
+        if (key == null) return;  //login, settings and the like stay under the chat they were opened from
+        entry.url = url;
+        if (key.equals(entry.key)) return;
+        entry.title = null;
+        restorable.remove(key);
+        Entry other = live.get(key);
+        if (other == active) {
+            rekey(entry, key + "#" + (++duplicates));  //a background chat followed a link to the shown one
+            return;
+        }
+        if (other != null) rekey(other, key + "#" + (++duplicates));
+        rekey(entry, key);
+    }
+
+    private void rekey(Entry entry, String key) {
+        live.remove(entry.key);
+        entry.key = key;
+        live.put(key, entry);
+    }
+
+    public void onTitle(WebView webView, String title) {
+        Entry entry = find(webView);
+        if (entry != null) entry.title = title;
+    }
+
+    public void setHeap(WebView webView, long heapBytes) {
+        Entry entry = find(webView);
+        if (entry != null) entry.heapBytes = heapBytes;
+        trim();
+    }
+
+    //Replaces a WebView whose renderer is gone, the active one is reloaded right away, others when they are shown
+    public WebView replace(WebView webView) {
+        Entry entry = find(webView);
+        if (entry == null) return null;
+        if (entry != active) {
+            live.remove(entry.key);
+            keep(entry);
+            release(entry);
+            return null;
+        }
+        int index = container.indexOfChild(webView);
+        live.remove(entry.key);
+        release(entry);
+        WebView replacement = factory.create();
+        container.addView(replacement, index, params);
+        active = new Entry(entry.key, replacement, entry.url);
+        active.title = entry.title;
+        active.lastUsed = SystemClock.elapsedRealtime();
+        live.put(active.key, active);
+        return replacement;
+    }
+
+    //Destroys all background WebViews, e.g. when memory is low
+    public void evictBackground() {
+        Iterator<Entry> iterator = live.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry == active) continue;
+            iterator.remove();
+            evict(entry);
+        }
+    }
+
+    //After a reset the other chats belong to a session that no longer exists
+    public void clearBackground() {
+        evictBackground();
+        restorable.clear();
+    }
+
+    private void trim() {
+        long total = 0;
+        for (Entry entry : live.values()) total += entry.estimatedBytes();
+        Iterator<Entry> iterator = live.values().iterator();  //least recently used first
+        while (total > budgetBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry == active) continue;
+            total -= entry.estimatedBytes();
+            iterator.remove();
+            evict(entry);
+        }
+    }
+
+    private void evict(Entry entry) {
+        evictions++;
+        keep(entry);
+        release(entry);
+    }
+
+    //Remembers the URL of a chat so it can be loaded again
+    private void keep(Entry entry) {
+        restorable.put(entry.key, new String[]{entry.url, entry.title});
+        Iterator<String> keys = restorable.keySet().iterator();
+        while (restorable.size() > MAX_RESTORABLE && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private void release(Entry entry) {
+        if (pendingVisible == entry.webView) pendingVisible = null;
+        factory.release(entry.webView);
+        container.removeView(entry.webView);
+        entry.webView.destroy();
+    }
+
+    private Entry find(WebView webView) {
+        for (Entry entry : live.values()) {
+            if (entry.webView == webView) return entry;
+        }
+        return null;
+    }
+
+    //URLs, titles, liveness and keys of the chats for a chooser, live ones first, most recently used first
+    public List<String[]> getChats() {
+        List<String[]> chats = new ArrayList<>();
+        for (Entry entry : live.values()) chats.add(0, new String[]{entry.url, entry.title, "live", entry.key});
+        List<String[]> evicted = new ArrayList<>();
+        for (Map.Entry<String, String[]> record : restorable.entrySet()) {
+            evicted.add(0, new String[]{record.getValue()[0], record.getValue()[1], null, record.getKey()});
+        }
+        chats.addAll(evicted);
+        return chats;
+    }
+
+    private static int bucket(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    //Estimated percentile in milliseconds, taken as the upper bound of the matching bucket
+    private static long percentile(long[] histogram, double p) {
+        long total = 0;
+        for (long count : histogram) total += count;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram[i];
+            if (count >= rank) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public String toText() {
+        long total = 0;
+        for (Entry entry : live.values()) total += entry.estimatedBytes();
+        StringBuilder text = new StringBuilder("WebView pool\n");
+        text.append(live.size()).append(" live, ").append(total / (1024 * 1024)).append(" of ")
+                .append(budgetBytes / (1024 * 1024)).append(" MB, ").append(restorable.size()).append(" restorable\n");
+        int switches = hits + misses;
+        text.append("hits ").append(hits).append(", misses ").append(misses)
+                .append(switches > 0 ? " (" + (100 * hits / switches) + "% hit rate)" : "")
+                .append(", restores ").append(restores).append(", evictions ").append(evictions).append('\n');
+        text.append("switch hit p50 ").append(percentile(hitLatency, 0.5)).append(" ms, p95 ").append(percentile(hitLatency, 0.95))
+                .append(" ms; miss p50 ").append(percentile(missLatency, 0.5)).append(" ms, p95 ").append(percentile(missLatency, 0.95)).append(" ms\n");
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : live.values()) {
+            text.append(entry == active ? "* " : "  ").append(entry.key)
+                    .append(' ').append(entry.heapBytes >= 0 ? (entry.heapBytes / 1024) + " kB heap" : "heap n/a")
+                    .append(", ").append((now - entry.lastUsed) / 1000).append(" s\n");
+        }
+        return text.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("budgetBytes", budgetBytes);
+        json.put("hits", hits);
+        json.put("misses", misses);
+        json.put("restores", restores);
+        json.put("evictions", evictions);
+        json.put("restorable", restorable.size());
+        JSONArray hitBuckets = new JSONArray();
+        JSONArray missBuckets = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            hitBuckets.put(hitLatency[i]);
+            missBuckets.put(missLatency[i]);
+        }
+        json.put("hitLatencyBucketsLog2Millis", hitBuckets);
+        json.put("missLatencyBucketsLog2Millis", missBuckets);
+        JSONArray views = new JSONArray();
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : live.values()) {
+            JSONObject view = new JSONObject();
+            view.put("key", entry.key);
+            view.put("active", entry == active);
+            view.put("heapBytes", entry.heapBytes);
+            view.put("estimatedBytes", entry.estimatedBytes());
+            view.put("idleMillis", now - entry.lastUsed);
+            views.put(view);
+        }
+        json.put("webViews", views);
+        return json;
+    }
+}
@@ -0,0 +1,178 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AssetCache against a local HTTP server that serves every path with a body derived from the fingerprint in the
+ * file name, so files with the same fingerprint have the same content. Paths starting with /missing/ answer 404.
+ */
+public class AssetCacheTest {
+
+    private static final int SIZE = 1000;
+    private static final long MAX_BYTES = 2500;  //room for two assets
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String base;
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requests.putIfAbsent(path, new AtomicInteger());
+                requests.get(path).incrementAndGet();
+                if (path.startsWith("/missing/")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = body(path.substring(path.lastIndexOf('/') + 1));
+                exchange.getResponseHeaders().set("Content-Type", "text/javascript; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static byte[] body(String name) {
+        String fingerprint = name.substring(name.indexOf('.') + 1, name.lastIndexOf('.'));
+        byte[] body = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) body[i] = (byte) fingerprint.charAt(i % fingerprint.length());
+        return body;
+    }
+
+    private String url(String name) {
+        return base + AssetCache.IMMUTABLE_PATH + name;
+    }
+
+    private int requests(String name) {
+        AtomicInteger count = requests.get(AssetCache.IMMUTABLE_PATH + name);
+        return count != null ? count.get() : 0;
+    }
+
+    private static byte[] read(AssetCache.Asset asset) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try (InputStream in = asset.data) {
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private AssetCache newCache() {
+        return new AssetCache(folder.getRoot(), MAX_BYTES, AssetCache.IMMUTABLE_PATH);
+    }
+
+    @Test
+    public void missFetchesThenHitServesFromDisk() throws IOException {
+        AssetCache cache = newCache();
+        AssetCache.Asset first = cache.get(url("start.Bq1x2a3c.js"), null);
+        assertNotNull(first);
+        assertEquals("text/javascript", first.mimeType);
+        assertArrayEquals(body("start.Bq1x2a3c.js"), read(first));
+        assertEquals(1, cache.getMisses());
+
+        AssetCache.Asset second = cache.get(url("start.Bq1x2a3c.js"), null);
+        assertNotNull(second);
+        assertArrayEquals(body("start.Bq1x2a3c.js"), read(second));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, requests("start.Bq1x2a3c.js"));
+    }
+
+    @Test
+    public void indexSurvivesRestart() throws IOException {
+        assertNotNull(newCache().get(url("start.Bq1x2a3c.js"), null));
+        AssetCache cache = newCache();
+        assertNotNull(cache.get(url("start.Bq1x2a3c.js"), null));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, requests("start.Bq1x2a3c.js"));
+    }
+
+    @Test
+    public void errorResponseIsLeftToTheWebView() {
+        AssetCache cache = newCache();
+        assertNull(cache.get(base + "/missing" + AssetCache.IMMUTABLE_PATH + "start.Bq1x2a3c.js", null));
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void newFingerprintSupersedesOldBundle() throws IOException {
+        AssetCache cache = newCache();
+        assertNotNull(cache.get(url("start.Bq1x2a3c.js"), null));
+        assertNotNull(cache.get(url("start.Zz9y8x7w.js"), null));
+        assertEquals(1, cache.getSuperseded());
+        assertEquals(1, cache.count());
+    }
+
+    @Test
+    public void supersedeKeepsContentStillIndexedUnderOtherUrl() throws IOException {
+        AssetCache cache = newCache();
+        assertNotNull(cache.get(url("start.Bq1x2a3c.js"), null));
+        assertNotNull(cache.get(url("chunk.Bq1x2a3c.js"), null));  //identical content, stored once
+        assertEquals(1, cache.count());
+        assertNotNull(cache.get(url("start.Zz9y8x7w.js"), null));
+        assertEquals(1, cache.getSuperseded());
+        assertEquals(2, cache.count());
+
+        AssetCache.Asset chunk = cache.get(url("chunk.Bq1x2a3c.js"), null);
+        assertNotNull(chunk);
+        assertArrayEquals(body("chunk.Bq1x2a3c.js"), read(chunk));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, requests("chunk.Bq1x2a3c.js"));
+    }
+
+    @Test
+    public void sizeCapEvictsLeastRecentlyUsed() throws IOException {
+        AssetCache cache = newCache();
+        assertNotNull(cache.get(url("a.Aa1111aa.js"), null));
+        assertNotNull(cache.get(url("b.Bb2222bb.js"), null));
+        assertNotNull(cache.get(url("a.Aa1111aa.js"), null));  //a is now more recent than b
+        assertNotNull(cache.get(url("c.Cc3333cc.js"), null));
+        assertEquals(2, cache.count());
+        assertEquals(2 * SIZE, cache.size());
+
+        assertNotNull(cache.get(url("a.Aa1111aa.js"), null));
+        assertEquals(1, requests("a.Aa1111aa.js"));
+        assertNotNull(cache.get(url("b.Bb2222bb.js"), null));
+        assertEquals(2, requests("b.Bb2222bb.js"));
+    }
+}
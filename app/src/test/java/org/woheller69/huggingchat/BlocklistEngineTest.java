@@ -0,0 +1,104 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compiles lists to a file and matches against the memory-mapped result.
+ */
+public class BlocklistEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BlocklistEngine compile(String rules, int expectedRules) throws IOException {
+        File compiled = new File(folder.getRoot(), "blocklist.bin");
+        int count = BlocklistEngine.compile(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)), compiled);
+        assertEquals(expectedRules, count);
+        BlocklistEngine engine = BlocklistEngine.open(compiled);
+        assertEquals(expectedRules == 0, engine.isEmpty());
+        return engine;
+    }
+
+    @Test
+    public void hostRulesBlockHostAndSubdomains() throws IOException {
+        BlocklistEngine engine = compile("||tracker.example.com^\n||Ads.example.net^$third-party\n", 2);
+        assertTrue(engine.isBlocked("tracker.example.com", "https://tracker.example.com/"));
+        assertTrue(engine.isBlocked("eu.tracker.example.com", "https://eu.tracker.example.com/x"));
+        assertTrue(engine.isBlocked("ads.example.net", "https://ads.example.net/"));
+        assertFalse(engine.isBlocked("example.com", "https://example.com/"));
+        assertFalse(engine.isBlocked("mytracker.example.com", "https://mytracker.example.com/"));
+    }
+
+    @Test
+    public void pathRulesMatchSubstringsWithWildcards() throws IOException {
+        BlocklistEngine engine = compile("/gtag/js\n|https://*/collect?v=*&tid=\n/beacon/*/pixel.gif\n/ab/\n", 4);
+        assertTrue(engine.isBlocked("huggingface.co", "https://huggingface.co/gtag/js?id=G-1"));
+        assertTrue(engine.isBlocked("huggingface.co", "https://huggingface.co/collect?v=2&tid=G-1"));
+        assertTrue(engine.isBlocked("huggingface.co", "https://huggingface.co/BEACON/v1/Pixel.gif"));
+        assertTrue(engine.isBlocked("huggingface.co", "https://huggingface.co/ab/c"));  //too short for a key token
+        assertFalse(engine.isBlocked("huggingface.co", "https://huggingface.co/chat/"));
+        assertFalse(engine.isBlocked("huggingface.co", "https://huggingface.co/pixel.gif/beacon/"));  //segments in order
+    }
+
+    @Test
+    public void ignoresUnsupportedSyntax() throws IOException {
+        BlocklistEngine engine = compile("! comment\n[Adblock Plus 2.0]\n@@/chat/\nhuggingface.co##.banner\n", 0);
+        assertFalse(engine.isBlocked("huggingface.co", "https://huggingface.co/chat/"));
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() throws IOException {
+        StringBuilder rules = new StringBuilder();
+        int count = 2000;
+        for (int i = 0; i < count; i++) rules.append("/track").append(i).append("x/\n");
+        BlocklistEngine engine = compile(rules.toString(), count);
+        for (int i = 0; i < count; i++) {
+            assertTrue(engine.isBlocked(null, "https://huggingface.co/api/track" + i + "x/event"));
+            //Tokens that pass the bloom filter by chance are rejected by the token table
+            assertFalse(engine.isBlocked(null, "https://huggingface.co/api/track" + i + "y/event"));
+        }
+    }
+
+    @Test
+    public void compiledFileSurvivesReopen() throws IOException {
+        compile("||tracker.example.com^\n/gtag/js\n", 2);
+        BlocklistEngine engine = BlocklistEngine.open(new File(folder.getRoot(), "blocklist.bin"));
+        assertTrue(engine.isBlocked("tracker.example.com", null));
+        assertTrue(engine.isBlocked(null, "https://huggingface.co/gtag/js"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[64]);
+        }
+        BlocklistEngine.open(file);
+    }
+
+    //The bundled list only documents the syntax, the rules come from the settings
+    @Test
+    public void bundledListHasNoRules() throws IOException {
+        File compiled = new File(folder.getRoot(), "bundled.bin");
+        try (InputStream in = new FileInputStream("src/main/res/raw/blocklist.txt")) {
+            assertEquals(0, BlocklistEngine.compile(in, compiled));
+        }
+        BlocklistEngine engine = BlocklistEngine.open(compiled);
+        assertTrue(engine.isEmpty());
+        assertFalse(engine.isBlocked("huggingface.co", "https://huggingface.co/chat/conversation/abc"));
+    }
+}
@@ -0,0 +1,151 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Search results are delivered on the main looper, which the test idles until they arrive.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class ConversationArchiveTest {
+
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ConversationArchive.Message message(String conversation, String id, String text, long time) {
+        return new ConversationArchive.Message(conversation, id, "user", text, time);
+    }
+
+    private static List<String> search(ConversationArchive archive, String query) throws InterruptedException {
+        List<String> ids = new ArrayList<>();
+        for (ConversationArchive.Message message : searchMessages(archive, query)) ids.add(message.id);
+        return ids;
+    }
+
+    private static List<ConversationArchive.Message> searchMessages(ConversationArchive archive, String query) throws InterruptedException {
+        final List<List<ConversationArchive.Message>> results = new ArrayList<>();
+        archive.search(query, new ConversationArchive.SearchCallback() {
+            @Override
+            public void onResult(String query, List<ConversationArchive.Message> messages) {
+                results.add(messages);
+            }
+        });
+        long start = System.currentTimeMillis();
+        while (results.isEmpty() && System.currentTimeMillis() - start < TIMEOUT) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        }
+        assertEquals("no result within " + TIMEOUT + " ms", 1, results.size());
+        return results.get(0);
+    }
+
+    @Test
+    public void findsMessagesContainingAllTerms() throws InterruptedException {
+        ConversationArchive archive = new ConversationArchive(folder.getRoot());
+        archive.add(Arrays.asList(
+                message("c1", "m1", "How do I parse JSON in Java?", 1),
+                message("c1", "m2", "Use org.json or a streaming parser.", 2),
+                message("c2", "m3", "Parse the JSON response, then render it.", 3)));
+        assertEquals(Arrays.asList("m3", "m1"), search(archive, "json PARSE "));  //newest first, case-insensitive
+        assertEquals(Collections.singletonList("m2"), search(archive, "streaming"));
+        assertEquals(Collections.emptyList(), search(archive, "json kotlin"));
+        assertEquals(Collections.emptyList(), search(archive, "a ?"));  //no searchable terms
+    }
+
+    @Test
+    public void lastTermMatchesAsPrefixWhileTyping() throws InterruptedException {
+        ConversationArchive archive = new ConversationArchive(folder.getRoot());
+        archive.add(Arrays.asList(
+                message("c1", "m1", "How do I parse JSON in Java?", 1),
+                message("c1", "m2", "Use org.json or a streaming parser.", 2),
+                message("c2", "m3", "Parse the JSON response, then render it.", 3)));
+        assertEquals(Arrays.asList("m3", "m2", "m1"), search(archive, "json pars"));
+        assertEquals(Collections.emptyList(), search(archive, "json pars "));  //complete terms match exactly
+        assertEquals(Collections.singletonList("m2"), search(archive, "str"));
+        assertEquals(Collections.singletonList("m3"), search(archive, "re"));  //response and render
+        assertEquals(Collections.emptyList(), search(archive, "json kot"));
+    }
+
+    @Test
+    public void editedMessageSupersedesOlderVersion() throws InterruptedException {
+        ConversationArchive archive = new ConversationArchive(folder.getRoot());
+        archive.add(Collections.singletonList(message("c1", "m1", "first draft about rockets", 1)));
+        archive.add(Collections.singletonList(message("c1", "m1", "final text about satellites", 2)));
+        assertEquals(Collections.emptyList(), search(archive, "rockets"));
+        assertEquals(Collections.singletonList("m1"), search(archive, "satellites"));
+    }
+
+    @Test
+    public void indexIsRebuiltFromLog() throws InterruptedException {
+        ConversationArchive archive = new ConversationArchive(folder.getRoot());
+        archive.add(Arrays.asList(
+                message("c1", "m1", "tomato soup recipe", 1),
+                message("c1", "m1", "tomato salad recipe", 2)));
+        assertEquals(Collections.singletonList("m1"), search(archive, "salad"));  //also waits for the write
+
+        ConversationArchive reopened = new ConversationArchive(folder.getRoot());
+        assertEquals(Collections.singletonList("m1"), search(reopened, "tomato recipe"));
+        assertEquals(Collections.emptyList(), search(reopened, "soup"));
+    }
+
+    @Test
+    public void resultsAreReadFromTheLog() throws InterruptedException, IOException {
+        ConversationArchive archive = new ConversationArchive(folder.getRoot());
+        archive.add(Arrays.asList(
+                new ConversationArchive.Message("c1", "m1", "assistant", "Gr\u00fc\u00dfe aus M\u00fcnchen \u2013 caf\u00e9", 7),
+                message("c1", "m2", "second line\nof text", 8)));
+        List<ConversationArchive.Message> found = searchMessages(archive, "m\u00fcnchen");
+        assertEquals(1, found.size());
+        assertEquals("Gr\u00fc\u00dfe aus M\u00fcnchen \u2013 caf\u00e9", found.get(0).text);
+        assertEquals("assistant", found.get(0).role);
+        assertEquals(7, found.get(0).time);
+        assertEquals("second line\nof text", searchMessages(archive, "second").get(0).text);
+
+        //A line cut off by a crash is dropped, later appends start on a line of their own
+        Files.write(new File(folder.getRoot(), "log").toPath(), "{\"c\":\"c1\",\"id\":\"m3\",\"t\":\"cut".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        ConversationArchive reopened = new ConversationArchive(folder.getRoot());
+        reopened.add(Collections.singletonList(message("c1", "m4", "after the crash", 9)));
+        assertEquals(Collections.singletonList("m4"), search(reopened, "crash"));
+        assertEquals(Collections.singletonList("m1"), search(new ConversationArchive(folder.getRoot()), "caf\u00e9"));
+    }
+
+    @Test
+    public void compactionKeepsLatestVersions() throws InterruptedException, IOException {
+        ConversationArchive archive = new ConversationArchive(folder.getRoot());
+        for (int i = 0; i < 1200; i++) {
+            archive.add(Arrays.asList(message("c1", "m1", "revision r" + i, i), message("c1", "m2", "stable text", 0)));
+        }
+        assertEquals(Collections.singletonList("m1"), search(archive, "r1199"));
+        assertEquals(Collections.singletonList("m2"), search(archive, "stable"));
+        int lines = Files.readAllLines(new File(folder.getRoot(), "log").toPath(), StandardCharsets.UTF_8).size();
+        assertTrue("log was not compacted: " + lines + " lines", lines < 1200);  //1201 versions were written
+
+        ConversationArchive reopened = new ConversationArchive(folder.getRoot());
+        assertEquals(Collections.singletonList("m1"), search(reopened, "revision"));
+        assertEquals(Collections.emptyList(), search(reopened, "r5"));
+    }
+}
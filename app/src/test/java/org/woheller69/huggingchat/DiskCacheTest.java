@@ -0,0 +1,103 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class DiskCacheTest {
+
+    private static final int SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir() {
+        return new File(folder.getRoot(), "cache");
+    }
+
+    private static void put(DiskCache cache, String key, int size) throws IOException {
+        File tmp = cache.newTempFile();
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(new byte[size]);
+        }
+        cache.commit(key, tmp);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        DiskCache cache = new DiskCache(dir(), 3 * SIZE);
+        put(cache, "a", SIZE);
+        put(cache, "b", SIZE);
+        put(cache, "c", SIZE);
+        assertNotNull(cache.get("a"));  //b is now the least recently used
+        put(cache, "d", SIZE);
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertFalse(new File(dir(), "b").exists());
+        assertEquals(3, cache.count());
+        assertEquals(3 * SIZE, cache.size());
+    }
+
+    @Test
+    public void replacingAKeyKeepsSizeExact() throws IOException {
+        DiskCache cache = new DiskCache(dir(), 10 * SIZE);
+        put(cache, "a", SIZE);
+        put(cache, "a", 2 * SIZE);
+        assertEquals(1, cache.count());
+        assertEquals(2 * SIZE, cache.size());
+        cache.remove("a");
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void shrinkingTheCapEvicts() throws IOException {
+        DiskCache cache = new DiskCache(dir(), 3 * SIZE);
+        put(cache, "a", SIZE);
+        put(cache, "b", SIZE);
+        put(cache, "c", SIZE);
+        cache.setMaxBytes(SIZE);
+        assertEquals(1, cache.count());
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void restartKeepsOrderAndDropsTempFiles() throws IOException {
+        DiskCache cache = new DiskCache(dir(), 3 * SIZE);
+        put(cache, "a", SIZE);
+        put(cache, "b", SIZE);
+        File leftover = cache.newTempFile();
+        //The order survives through the modification time
+        assertTrue(new File(dir(), "a").setLastModified(System.currentTimeMillis() - 20000));
+        assertTrue(new File(dir(), "b").setLastModified(System.currentTimeMillis() - 10000));
+
+        DiskCache reopened = new DiskCache(dir(), 2 * SIZE);
+        assertFalse(leftover.exists());
+        assertEquals(2, reopened.count());
+        put(reopened, "c", SIZE);
+        assertFalse(reopened.contains("a"));
+        assertTrue(reopened.contains("b"));
+    }
+
+    @Test
+    public void mappedStreamReadsWholeFile() throws IOException {
+        DiskCache cache = new DiskCache(dir(), 10 * SIZE);
+        put(cache, "a", SIZE);
+        int length = 0;
+        try (InputStream in = DiskCache.openMapped(cache.get("a"))) {
+            while (in.read() != -1) length++;
+        }
+        assertEquals(SIZE, length);
+    }
+}
@@ -0,0 +1,100 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class HostFilterTest {
+
+    private final HostFilter filter = new HostFilter(HostFilter.DEFAULT_DOMAINS);
+
+    @Test
+    public void matchesDomainAndSubdomains() {
+        assertTrue(filter.isAllowed("huggingface.co"));
+        assertTrue(filter.isAllowed("cdn-lfs.huggingface.co"));
+        assertTrue(filter.isAllowed("a.b.huggingface.co"));
+        assertTrue(filter.isAllowed("image.pollinations.ai"));
+    }
+
+    @Test
+    public void matchesOnLabelBoundaryOnly() {
+        assertFalse(filter.isAllowed("nothuggingface.co"));
+        assertFalse(filter.isAllowed("xpollinations.ai"));
+        assertFalse(filter.isAllowed("huggingface.co.evil.com"));
+        assertFalse(filter.isAllowed("face.co"));
+        assertFalse(filter.isAllowed("co"));
+    }
+
+    @Test
+    public void trailingDotIsAnExplicitRule() {
+        assertTrue(filter.isAllowed("huggingface.co."));
+        assertTrue(filter.isAllowed("cdn.huggingface.co."));
+        assertFalse(filter.isAllowed("pollinations.ai."));
+    }
+
+    @Test
+    public void ignoresCase() {
+        assertTrue(new HostFilter(Arrays.asList("HuggingFace.co")).isAllowed("CDN.huggingface.CO"));
+    }
+
+    @Test
+    public void rejectsEmptyHosts() {
+        assertFalse(filter.isAllowed(null));
+        assertFalse(filter.isAllowed(""));
+        assertFalse(filter.isAllowed("."));
+    }
+
+    @Test
+    public void cachedVerdictsStayCorrect() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(filter.isAllowed("huggingface.co"));
+            assertFalse(filter.isAllowed("nothuggingface.co"));
+        }
+        for (int i = 0; i < 1000; i++) assertFalse(filter.isAllowed("host" + i + ".example.com"));  //pushes out the cache
+        assertTrue(filter.isAllowed("huggingface.co"));
+        filter.clearCache();
+        assertFalse(filter.isAllowed("nothuggingface.co"));
+    }
+
+    @Test
+    public void collidingHostsKeepTheirVerdicts() {
+        //"Aa" and "BB" have the same hash, so each pair shares a cache slot
+        HostFilter filter = new HostFilter(Arrays.asList("example.com"));
+        assertEquals("Aa.example.com".hashCode(), "BB.example.com".hashCode());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(filter.isAllowed("Aa.example.com"));
+            assertTrue(filter.isAllowed("BB.example.com"));
+            assertFalse(filter.isAllowed("Aa.example.net"));
+            assertFalse(filter.isAllowed("BB.example.net"));
+        }
+    }
+
+    @Test
+    public void concurrentLookupsAgree() throws InterruptedException {
+        final AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        String host = (i % 3 == 0 ? "cdn" : "x") + (i % 500) + (i % 2 == 0 ? ".huggingface.co" : "huggingface.co");
+                        if (filter.isAllowed(host) != (i % 2 == 0)) failure.set(host);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertNull(failure.get());
+    }
+}
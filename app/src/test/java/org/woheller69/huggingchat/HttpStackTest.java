@@ -0,0 +1,215 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HttpStack against a local HTTP server: gzip, fallbacks to the WebView, cookies and streamed bodies.
+ */
+public class HttpStackTest {
+
+    private static final byte[] TEXT = "Hello from the chat server\n".getBytes(StandardCharsets.UTF_8);
+    private static final long TIMEOUT = 5000;
+
+    private HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();  //the streaming handler blocks
+    private String base;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final CountDownLatch releaseRest = new CountDownLatch(1);
+    private volatile String requestCookie;
+    private final List<String> storedCookies = new ArrayList<>();
+
+    private final HttpStack.CookieJar cookieJar = new HttpStack.CookieJar() {
+        @Override
+        public String getCookie(String url) {
+            return "session=abc";
+        }
+
+        @Override
+        public void setCookie(String url, String value) {
+            synchronized (storedCookies) {
+                storedCookies.add(value);
+            }
+        }
+    };
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                requestCookie = exchange.getRequestHeaders().getFirst("Cookie");
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/gzip")) {
+                    String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                        gzip.write(TEXT);
+                    }
+                    byte[] body = accept != null && accept.contains("gzip") ? compressed.toByteArray() : TEXT;
+                    if (body != TEXT) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    send(exchange, 200, "text/plain; charset=utf-8", body);
+                } else if (path.equals("/redirect")) {
+                    exchange.getResponseHeaders().set("Location", "/text");
+                    send(exchange, 302, null, new byte[0]);
+                } else if (path.equals("/cookies")) {
+                    exchange.getResponseHeaders().add("Set-Cookie", "a=1; Path=/");
+                    exchange.getResponseHeaders().add("Set-Cookie", "b=2; Path=/; HttpOnly");
+                    send(exchange, 200, "text/plain", TEXT);
+                } else if (path.equals("/stream")) {
+                    exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+                    exchange.sendResponseHeaders(200, 0);  //chunked
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(TEXT);
+                    out.flush();
+                    try {
+                        releaseRest.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ignored) {
+                    }
+                    out.write(TEXT);
+                    out.close();
+                } else if (path.equals("/missing")) {
+                    send(exchange, 404, "text/html", TEXT);
+                } else {
+                    send(exchange, 200, "text/plain", TEXT);
+                }
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        releaseRest.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try {
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private HttpStack newStack() {
+        return new HttpStack(cookieJar, (int) TIMEOUT, (int) TIMEOUT);
+    }
+
+    @Test
+    public void gzipBodyIsDecoded() throws IOException {
+        HttpStack.Response response = newStack().fetch(base + "/gzip", null);
+        assertNotNull(response);
+        assertEquals(200, response.statusCode);
+        assertEquals("text/plain", response.mimeType);
+        assertEquals("utf-8", response.encoding);
+        for (String name : response.headers.keySet()) {
+            assertFalse(name, name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length"));
+        }
+        assertArrayEquals(TEXT, read(response.data));
+    }
+
+    @Test
+    public void redirectFallsBackToWebView() {
+        assertNull(newStack().fetch(base + "/redirect", null));
+        assertEquals(1, requests.get());  //not followed
+    }
+
+    @Test
+    public void rangeRequestFallsBackWithoutNetwork() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("range", "bytes=0-");
+        assertNull(newStack().fetch(base + "/text", headers));
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void cookiesPassThroughCookieJar() throws IOException {
+        HttpStack.Response response = newStack().fetch(base + "/cookies", null);
+        assertNotNull(response);
+        read(response.data);
+        assertEquals("session=abc", requestCookie);
+        synchronized (storedCookies) {
+            assertEquals(new HashSet<>(Arrays.asList("a=1; Path=/", "b=2; Path=/; HttpOnly")), new HashSet<>(storedCookies));
+        }
+        for (String name : response.headers.keySet()) assertFalse(name, name.equalsIgnoreCase("Set-Cookie"));
+    }
+
+    @Test
+    public void errorStatusKeepsBody() throws IOException {
+        HttpStack.Response response = newStack().fetch(base + "/missing", null);
+        assertNotNull(response);
+        assertEquals(404, response.statusCode);
+        assertArrayEquals(TEXT, read(response.data));
+    }
+
+    @Test
+    public void bodyIsStreamedBeforeResponseCompletes() throws Exception {
+        HttpStack.Response response = newStack().fetch(base + "/stream", null);
+        assertNotNull(response);
+        byte[] first = new byte[TEXT.length];
+        int count = 0;
+        long start = System.currentTimeMillis();
+        while (count < first.length) {
+            int read = response.data.read(first, count, first.length - count);
+            assertTrue(read > 0);
+            count += read;
+        }
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT);  //did not wait for the held back rest
+        assertArrayEquals(TEXT, first);
+        releaseRest.countDown();
+        assertArrayEquals(TEXT, read(response.data));
+    }
+}
@@ -0,0 +1,206 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ImageCache against a local HTTP server. Paths starting with /slow/ are held back until the test releases them,
+ * paths starting with /missing/ answer 404, /utf/ answers with a MIME type that is not ASCII.
+ */
+public class ImageCacheTest {
+
+    private static final int SIZE = 5000;
+    private static final int CALLERS = 4;
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();  //the slow handler blocks
+    private String base;
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requests.putIfAbsent(path, new AtomicInteger());
+                requests.get(path).incrementAndGet();
+                if (path.startsWith("/missing/")) {
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                if (path.startsWith("/slow/")) {
+                    try {
+                        release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                byte[] body = body(path);
+                exchange.getResponseHeaders().set("Content-Type", path.startsWith("/utf/") ? "image/x-\u00e9" : "image/png");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        release.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static byte[] body(String path) {
+        byte[] body = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) body[i] = (byte) path.charAt(i % path.length());
+        return body;
+    }
+
+    private int requests(String path) {
+        AtomicInteger count = requests.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    private static byte[] read(ImageCache.Image image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try (InputStream in = image.data) {
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private ImageCache newCache() {
+        return new ImageCache(folder.getRoot(), 1024 * 1024, 1024 * 1024);
+    }
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        final ImageCache cache = newCache();
+        final String url = base + "/slow/prompt/cat";
+        final List<byte[]> bodies = new ArrayList<>();
+        final List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    ImageCache.Image image = cache.get(url, null);
+                    try {
+                        byte[] body = image != null ? read(image) : null;
+                        synchronized (bodies) {
+                            bodies.add(body);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            callers.add(caller);
+            caller.start();
+        }
+        //All but the caller that fetches park on the shared fetch before the server answers
+        long start = System.currentTimeMillis();
+        int waiting = 0;
+        while (waiting < CALLERS - 1 && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(5);
+            waiting = 0;
+            for (Thread caller : callers) if (caller.getState() == Thread.State.WAITING) waiting++;
+        }
+        assertEquals(CALLERS - 1, waiting);
+        release.countDown();
+        for (Thread caller : callers) caller.join(TIMEOUT);
+
+        assertEquals(1, requests("/slow/prompt/cat"));
+        assertEquals(CALLERS, bodies.size());
+        for (byte[] body : bodies) assertArrayEquals(body("/slow/prompt/cat"), body);
+        assertTrue(cache.toText(), cache.toText().contains("misses 1, coalesced " + (CALLERS - 1)));
+    }
+
+    @Test
+    public void imageSurvivesRestartOnDisk() throws IOException {
+        ImageCache.Image first = newCache().get(base + "/prompt/dog", null);
+        assertNotNull(first);
+        assertArrayEquals(body("/prompt/dog"), read(first));
+
+        ImageCache cache = newCache();
+        ImageCache.Image second = cache.get(base + "/prompt/dog", null);
+        assertNotNull(second);
+        assertEquals(200, second.statusCode);
+        assertEquals("image/png", second.mimeType);
+        assertArrayEquals(body("/prompt/dog"), read(second));
+        assertEquals(1, requests("/prompt/dog"));
+        assertTrue(cache.toText(), cache.toText().contains("disk hits 1"));
+
+        assertNotNull(cache.get(base + "/prompt/dog", null));  //now from memory
+        assertTrue(cache.toText(), cache.toText().contains("memory hits 1"));
+    }
+
+    @Test
+    public void mimeTypeLengthDoesNotShiftTheBody() throws IOException {
+        assertNotNull(newCache().get(base + "/utf/prompt/bird", null));
+        ImageCache.Image image = newCache().get(base + "/utf/prompt/bird", null);
+        assertNotNull(image);
+        assertEquals("image/x-\u00e9", image.mimeType);
+        assertArrayEquals(body("/utf/prompt/bird"), read(image));
+        assertEquals(1, requests("/utf/prompt/bird"));
+    }
+
+    @Test
+    public void errorIsHandedOverButNotCached() throws IOException {
+        ImageCache cache = newCache();
+        ImageCache.Image image = cache.get(base + "/missing/prompt/fish", null);
+        assertNotNull(image);
+        assertEquals(404, image.statusCode);
+        assertNotNull(cache.get(base + "/missing/prompt/fish", null));
+        assertEquals(2, requests("/missing/prompt/fish"));
+    }
+
+    @Test
+    public void unreachableServerIsLeftToTheWebView() {
+        server.stop(0);
+        assertNull(newCache().get(base + "/prompt/cat", null));
+    }
+}
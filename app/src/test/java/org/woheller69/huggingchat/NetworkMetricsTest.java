@@ -0,0 +1,45 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class NetworkMetricsTest {
+
+    private static final int HOSTS = 1000;
+
+    @Test
+    public void hostsBeyondTheCapAreCountedAsOther() throws JSONException {
+        NetworkMetrics metrics = new NetworkMetrics();
+        for (int i = 0; i < HOSTS; i++) {
+            metrics.record(NetworkMetrics.INTERCEPT, "host" + i + ".example.com", i % 2 == 0, System.nanoTime());
+        }
+        assertEquals(NetworkMetrics.MAX_HOSTS + 1, metrics.hostCount());
+
+        long allowed = 0;
+        long blocked = 0;
+        long other = 0;
+        JSONArray hosts = metrics.toJson().getJSONArray("hosts");
+        for (int i = 0; i < hosts.length(); i++) {
+            JSONObject host = hosts.getJSONObject(i);
+            allowed += host.getLong("allowed");
+            blocked += host.getLong("blocked");
+            if (NetworkMetrics.OTHER.equals(host.getString("host"))) other = host.getLong("allowed") + host.getLong("blocked");
+        }
+        assertEquals(HOSTS / 2, allowed);
+        assertEquals(HOSTS / 2, blocked);
+        assertEquals(HOSTS - NetworkMetrics.MAX_HOSTS, other);
+    }
+
+    @Test
+    public void knownHostsKeepCountingAfterTheCap() {
+        NetworkMetrics metrics = new NetworkMetrics();
+        for (int i = 0; i < HOSTS; i++) metrics.record(NetworkMetrics.INTERCEPT, "host" + i + ".example.com", true, System.nanoTime());
+        metrics.record(NetworkMetrics.INTERCEPT, "host0.example.com", false, System.nanoTime());
+        assertTrue(metrics.toText(), metrics.toText().contains("host0.example.com: 1 / 1\n"));
+    }
+}
@@ -0,0 +1,90 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writers wrap around the ring buffer many times while a reader takes snapshots. Every field of an entry is derived
+ * from the same number, so an entry copied while it was being overwritten shows up as a mismatch.
+ */
+public class PageTelemetryTest {
+
+    private static final int WRITERS = 4;
+    private static final int ENTRIES = 20 * PageTelemetry.CAPACITY;  //per writer
+
+    private static void assertConsistent(Object[] entry) {
+        long time = (Long) entry[1];
+        assertEquals(time % 6, (long) (Integer) entry[0]);
+        assertEquals(time, (long) (Long) entry[2]);
+        assertEquals(Long.toString(time), entry[3]);
+    }
+
+    @Test
+    public void snapshotNeverReturnsTornEntries() throws InterruptedException {
+        final PageTelemetry telemetry = new PageTelemetry();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final long offset = (long) w * ENTRIES;
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long i = offset; i < offset + ENTRIES; i++) {
+                        telemetry.record((int) (i % 6), i, i, Long.toString(i));
+                    }
+                }
+            };
+            writers.add(writer);
+            writer.start();
+        }
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        for (Object[] entry : telemetry.snapshot()) assertConsistent(entry);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+        start.countDown();
+        for (Thread writer : writers) writer.join();
+        done.set(true);
+        reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        List<Object[]> entries = telemetry.snapshot();
+        assertEquals(PageTelemetry.CAPACITY, entries.size());  //the newest entry of every slot survived
+        for (Object[] entry : entries) assertConsistent(entry);
+    }
+
+    @Test
+    public void parsesBatchLines() {
+        PageTelemetry telemetry = new PageTelemetry();
+        telemetry.onBatch("1,1000,52000,self\n9,1,1,unknown type\nbroken\n2,1001,-5,IMG,with comma");
+        List<Object[]> entries = telemetry.snapshot();
+        assertEquals(2, entries.size());
+        assertEquals(PageTelemetry.LONG_TASK, entries.get(0)[0]);
+        assertEquals(52000L, entries.get(0)[2]);
+        assertEquals("self", entries.get(0)[3]);
+        assertEquals(-5L, entries.get(1)[2]);
+        assertEquals("IMG,with comma", entries.get(1)[3]);
+    }
+}
@@ -0,0 +1,108 @@
+package org.woheller69.huggingchat;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.view.View;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Wall clock cost of MainActivity.onCreate and of resetChat on the JVM, written to
+ * app/build/benchmark-results/&lt;name&gt;.json so runs of different versions can be compared.
+ * Robolectric replaces the WebView and the Android framework with shadows, so the figures cover the app's own code.
+ * The first iteration pays for class loading and the static initialisation of the process, it is reported separately.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class StartupBenchmarkTest {
+
+    private static final int ITERATIONS = 20;
+    private static final long RESET_TIMEOUT = 5000;
+    private static final File RESULTS = new File("build/benchmark-results");
+
+    @Test
+    public void onCreate() throws Exception {
+        long[] nanos = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class);
+            long start = System.nanoTime();
+            controller.create();
+            nanos[i] = System.nanoTime() - start;
+            MainActivity activity = controller.get();
+            assertNotNull(activity.findViewById(R.id.chatWebView));  //the layout was inflated, onCreate did not bail out
+            assertNotNull(((WebView) activity.findViewById(R.id.chatWebView)).getUrl());  //the start page is loading
+            controller.destroy();
+        }
+        write("onCreate", nanos, null);
+    }
+
+    @Test
+    public void resetChat() throws Exception {
+        ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class).setup();
+        MainActivity activity = controller.get();
+        View resetButton = activity.findViewById(R.id.resetButton);
+        long[] nanos = new long[ITERATIONS];
+        long[] completion = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            activity.resetChat(resetButton);
+            nanos[i] = System.nanoTime() - start;  //time spent on the main thread before resetChat returns
+
+            //The pipeline continues from callbacks, some of them on the cookie flush thread
+            while (!resetButton.isEnabled() && System.nanoTime() - start < RESET_TIMEOUT * 1000000) {
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(1);
+            }
+            completion[i] = resetButton.isEnabled() ? System.nanoTime() - start : -1;
+        }
+        controller.pause().stop().destroy();
+        write("resetChat", nanos, completion);
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue("resetChat " + i + " did not finish within " + RESET_TIMEOUT + " ms", completion[i] >= 0);
+        }
+    }
+
+    private static void write(String name, long[] nanos, long[] completion) throws IOException, JSONException {
+        JSONObject json = new JSONObject();
+        json.put("benchmark", name);
+        json.put("versionCode", BuildConfig.VERSION_CODE);
+        json.put("timestamp", System.currentTimeMillis());
+        json.put("iterations", ITERATIONS);
+        json.put("firstNanos", nanos[0]);
+        long[] warm = Arrays.copyOfRange(nanos, 1, nanos.length);
+        Arrays.sort(warm);
+        json.put("medianNanos", warm[warm.length / 2]);
+        json.put("minNanos", warm[0]);
+        json.put("maxNanos", warm[warm.length - 1]);
+        JSONArray samples = new JSONArray();
+        for (long sample : nanos) samples.put(sample);
+        json.put("samplesNanos", samples);
+        if (completion != null) {
+            JSONArray completions = new JSONArray();
+            for (long sample : completion) completions.put(sample);
+            json.put("completionNanos", completions);  //-1 if the pipeline did not finish within the timeout
+        }
+        if (!RESULTS.isDirectory() && !RESULTS.mkdirs()) throw new IOException("Cannot create " + RESULTS);
+        try (Writer writer = new FileWriter(new File(RESULTS, name + ".json"))) {
+            writer.write(json.toString(2));
+        }
+    }
+}
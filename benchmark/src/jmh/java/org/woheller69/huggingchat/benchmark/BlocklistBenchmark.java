@@ -0,0 +1,63 @@
+package org.woheller69.huggingchat.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.woheller69.huggingchat.BlocklistEngine;
+import org.woheller69.huggingchat.HostFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The complete filter of shouldInterceptRequest, the allowlist followed by a blocklist.
+ * The app bundles no rules, blocklist-sample.txt stands in for rules a user might enter.
+ */
+@State(Scope.Thread)
+public class BlocklistBenchmark {
+
+    private Trace trace;
+    private HostFilter filter;
+    private BlocklistEngine blocklist;
+    private File compiled;
+
+    @Setup
+    public void setup() throws IOException {
+        trace = Trace.load();
+        filter = new HostFilter(Trace.allowedDomains());
+        compiled = File.createTempFile("blocklist", ".bin");
+        try (InputStream source = BlocklistEngine.class.getResourceAsStream("/blocklist-sample.txt")) {
+            BlocklistEngine.compile(source, compiled);
+        }
+        blocklist = BlocklistEngine.open(compiled);
+    }
+
+    @TearDown
+    public void tearDown() {
+        compiled.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trace.LENGTH)
+    public int blocklistOnly() {
+        int blocked = 0;
+        for (int i = 0; i < Trace.LENGTH; i++) {
+            if (blocklist.isBlocked(trace.hosts[i], trace.urls[i])) blocked++;
+        }
+        return blocked;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Trace.LENGTH)
+    public int allowlistThenBlocklist() {
+        int passed = 0;
+        for (int i = 0; i < Trace.LENGTH; i++) {
+            if (filter.isAllowed(trace.hosts[i]) && !blocklist.isBlocked(trace.hosts[i], trace.urls[i])) passed++;
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,68 @@
+package org.woheller69.huggingchat.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.woheller69.huggingchat.HostFilter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Allow/deny decisions for every host of a recorded page load, per request.
+ */
+@State(Scope.Thread)
+public class HostFilterBenchmark {
+
+    private Trace trace;
+    private HostFilter filter;
+    private List<String> domains;
+
+    @Setup
+    public void setup() throws IOException {
+        trace = Trace.load();
+        domains = Trace.allowedDomains();
+        filter = new HostFilter(domains);
+    }
+
+    //Repeated hosts answered from the verdict cache, the steady state while chatting
+    @Benchmark
+    @OperationsPerInvocation(Trace.LENGTH)
+    public int cached() {
+        int allowed = 0;
+        for (String host : trace.hosts) {
+            if (filter.isAllowed(host)) allowed++;
+        }
+        return allowed;
+    }
+
+    //Every host walks the trie, as after clearCache() on memory pressure
+    @Benchmark
+    @OperationsPerInvocation(Trace.LENGTH)
+    public int uncached() {
+        filter.clearCache();
+        int allowed = 0;
+        for (String host : trace.hosts) {
+            if (filter.isAllowed(host)) allowed++;
+        }
+        return allowed;
+    }
+
+    //The endsWith() scan the trie replaced, kept as a baseline
+    @Benchmark
+    @OperationsPerInvocation(Trace.LENGTH)
+    public int endsWithScan() {
+        int allowed = 0;
+        for (String host : trace.hosts) {
+            for (String domain : domains) {
+                if (host.endsWith(domain)) {
+                    allowed++;
+                    break;
+                }
+            }
+        }
+        return allowed;
+    }
+}
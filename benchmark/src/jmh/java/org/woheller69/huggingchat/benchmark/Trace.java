@@ -0,0 +1,48 @@
+package org.woheller69.huggingchat.benchmark;
+
+import org.woheller69.huggingchat.HostFilter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * URLs recorded from a page load of the chat, with their hosts parsed up front as the WebView hands them over.
+ */
+final class Trace {
+
+    static final int LENGTH = 50;
+
+    final String[] urls;
+    final String[] hosts;
+
+    private Trace(String[] urls, String[] hosts) {
+        this.urls = urls;
+        this.hosts = hosts;
+    }
+
+    static Trace load() throws IOException {
+        List<String> urls = new ArrayList<>();
+        try (InputStream in = Trace.class.getResourceAsStream("/trace.txt");
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) urls.add(line);
+            }
+        }
+        if (urls.size() != LENGTH) throw new IllegalStateException("trace.txt has " + urls.size() + " URLs, expected " + LENGTH);
+        String[] hosts = new String[urls.size()];
+        for (int i = 0; i < hosts.length; i++) hosts[i] = URI.create(urls.get(i)).getHost();
+        return new Trace(urls.toArray(new String[0]), hosts);
+    }
+
+    static List<String> allowedDomains() {
+        return HostFilter.DEFAULT_DOMAINS;  //what Settings.DEFAULT_ALLOWLIST refers to
+    }
+}